@@ -0,0 +1,104 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.benchmarks;
+
+import java.util.Optional;
+
+import org.exist.EXistException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.test.ExistEmbeddedServer;
+import org.exist.xquery.XQueryContext;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Starts an embedded eXist-db instance, with temporary storage, once per
+ * benchmark run.
+ */
+@State(Scope.Benchmark)
+public class EmbeddedDatabase {
+
+	private final Server server = new Server();
+
+	@Setup(Level.Trial)
+	public void start() throws Throwable {
+		server.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() {
+		server.stop();
+	}
+
+	public BrokerPool getBrokerPool() {
+		return server.getBrokerPool();
+	}
+
+	/**
+	 * Holds a broker for the lifetime of a benchmark thread, so that the
+	 * functions under test can reach it through {@link XQueryContext#getBroker()}.
+	 */
+	@State(Scope.Thread)
+	public static class Session {
+
+		private DBBroker broker;
+		private XQueryContext context;
+
+		@Setup(Level.Trial)
+		public void open(final EmbeddedDatabase database) throws EXistException {
+			final BrokerPool pool = database.getBrokerPool();
+			broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+			context = new XQueryContext(pool);
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			if (context != null) {
+				context.reset();
+			}
+			if (broker != null) {
+				broker.close();
+			}
+		}
+
+		public XQueryContext getContext() {
+			return context;
+		}
+	}
+
+	private static class Server extends ExistEmbeddedServer {
+
+		Server() {
+			super(true, true);
+		}
+
+		void start() throws Throwable {
+			before();
+		}
+
+		void stop() {
+			after();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.benchmarks;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.exist.util.FileUtils;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.expath.exist.crypto.benchmarks.Payloads.InputType;
+import org.expath.exist.crypto.encrypt.EncryptionFunctions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks crypto:encrypt() and crypto:decrypt() with symmetric keys. Binary
+ * data is encrypted and decrypted into binary values, and other data into
+ * strings.
+ *
+ * The payloads held in memory are at most {@link Payloads#MAX_IN_MEMORY_SIZE}
+ * bytes. The 1 GB payloads, which are streamed from a file, are run with
+ * {@code -p size=1073741824 -p inputType=BASE64_BINARY}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class EncryptionBenchmark {
+
+	private static final String SECRET_KEY = "1234567890123456";
+
+	@Param({ "64", "1024", "65536", "1048576", "67108864" })
+	private int size;
+
+	@Param({ "STRING", "BASE64_BINARY" })
+	private InputType inputType;
+
+	@Param({ "AES/CBC/PKCS5Padding", "AES" })
+	private String algorithm;
+
+	@Param({ "SunJCE" })
+	private String provider;
+
+	private Path tempDir;
+	private EncryptionFunctions encryptFunction;
+	private EncryptionFunctions decryptFunction;
+	private Sequence[] encryptArgs;
+	private Sequence[] decryptArgs;
+
+	@Setup(Level.Trial)
+	public void setUp(final EmbeddedDatabase.Session session) throws Exception {
+		tempDir = Files.createTempDirectory("crypto-benchmarks");
+
+		final Sequence iv = algorithm.contains("/CBC/")
+				? new StringValue(Base64.getEncoder().encodeToString(
+						MessageDigest.getInstance("MD5").digest("initialization vector".getBytes(UTF_8))))
+				: Sequence.EMPTY_SEQUENCE;
+
+		final StringValue outputType = new StringValue(inputType == InputType.BASE64_BINARY ? "binary" : "string");
+
+		encryptFunction = new EncryptionFunctions(session.getContext(), EncryptionFunctions.FS_ENCRYPT[1]);
+		encryptArgs = new Sequence[] {
+				Payloads.create(session.getContext(), inputType, Payloads.randomBytes(size), tempDir),
+				new StringValue("symmetric"), new StringValue(SECRET_KEY), new StringValue(algorithm), iv,
+				new StringValue(provider), outputType };
+
+		decryptFunction = new EncryptionFunctions(session.getContext(), EncryptionFunctions.FS_DECRYPT[1]);
+		decryptArgs = new Sequence[] { encryptFunction.eval(encryptArgs, null), new StringValue("symmetric"),
+				new StringValue(SECRET_KEY), new StringValue(algorithm), iv, new StringValue(provider), outputType };
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtils.deleteQuietly(tempDir);
+	}
+
+	@Benchmark
+	public Sequence encrypt() throws XPathException {
+		return encryptFunction.eval(encryptArgs, null);
+	}
+
+	@Benchmark
+	public Sequence decrypt() throws XPathException {
+		return decryptFunction.eval(decryptArgs, null);
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.exist.util.FileUtils;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.expath.exist.crypto.benchmarks.Payloads.InputType;
+import org.expath.exist.crypto.digest.HashFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks crypto:hash($data, $algorithm, $encoding).
+ *
+ * The payloads held in memory are at most {@link Payloads#MAX_IN_MEMORY_SIZE}
+ * bytes. The 1 GB payloads, which are streamed from a file, are run with
+ * {@code -p size=1073741824 -p inputType=BASE64_BINARY}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class HashBenchmark {
+
+	@Param({ "64", "1024", "65536", "1048576", "67108864" })
+	private int size;
+
+	@Param({ "STRING", "BASE64_BINARY", "ELEMENT", "DOCUMENT" })
+	private InputType inputType;
+
+	@Param({ "MD5", "SHA-1", "SHA-256", "SHA-512" })
+	private String algorithm;
+
+	private Path tempDir;
+	private HashFunction function;
+	private Sequence[] args;
+
+	@Setup(Level.Trial)
+	public void setUp(final EmbeddedDatabase.Session session) throws Exception {
+		tempDir = Files.createTempDirectory("crypto-benchmarks");
+		function = new HashFunction(session.getContext(), HashFunction.FS_HASH[1]);
+		args = new Sequence[] {
+				Payloads.create(session.getContext(), inputType, Payloads.randomBytes(size), tempDir),
+				new StringValue(algorithm), new StringValue("base64") };
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtils.deleteQuietly(tempDir);
+	}
+
+	@Benchmark
+	public Sequence hash() throws XPathException {
+		return function.eval(args, null);
+	}
+}
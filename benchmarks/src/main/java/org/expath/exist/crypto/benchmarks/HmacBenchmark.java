@@ -0,0 +1,106 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.exist.util.FileUtils;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.expath.exist.crypto.benchmarks.Payloads.InputType;
+import org.expath.exist.crypto.digest.HmacFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks crypto:hmac($data, $key, $algorithm) and crypto:hmac($data, $key,
+ * $algorithm, $encoding).
+ *
+ * The payloads held in memory are at most {@link Payloads#MAX_IN_MEMORY_SIZE}
+ * bytes. The 1 GB payloads, which are streamed from a file, are run with
+ * {@code -p size=1073741824 -p inputType=BASE64_BINARY}. The payloads of the
+ * BYTES input type are capped at {@link Payloads#MAX_BYTES_SIZE}, so the sizes
+ * beyond 1 MB run with 1 MB for it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class HmacBenchmark {
+
+	private static final String SECRET_KEY = "OtxrzxIsfpFjA7SwPzILwy8Bw21TLhquhboDYROV";
+
+	@Param({ "64", "1024", "65536", "1048576", "67108864" })
+	private int size;
+
+	@Param({ "STRING", "BASE64_BINARY", "BYTES", "ELEMENT" })
+	private InputType inputType;
+
+	@Param({ "HMAC-MD5", "HMAC-SHA-1", "HMAC-SHA-256", "HMAC-SHA-512" })
+	private String algorithm;
+
+	private Path tempDir;
+	private HmacFunction bytesFunction;
+	private HmacFunction encodedFunction;
+	private Sequence[] bytesArgs;
+	private Sequence[] encodedArgs;
+
+	@Setup(Level.Trial)
+	public void setUp(final EmbeddedDatabase.Session session) throws Exception {
+		tempDir = Files.createTempDirectory("crypto-benchmarks");
+		final int payloadSize = inputType == InputType.BYTES ? Math.min(size, Payloads.MAX_BYTES_SIZE) : size;
+		final Sequence data = Payloads.create(session.getContext(), inputType, Payloads.randomBytes(payloadSize),
+				tempDir);
+
+		bytesFunction = new HmacFunction(session.getContext(), HmacFunction.FS_HMAC[0]);
+		bytesArgs = new Sequence[] { data, new StringValue(SECRET_KEY), new StringValue(algorithm) };
+
+		encodedFunction = new HmacFunction(session.getContext(), HmacFunction.FS_HMAC[1]);
+		encodedArgs = new Sequence[] { data, new StringValue(SECRET_KEY), new StringValue(algorithm),
+				new StringValue("base64") };
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		FileUtils.deleteQuietly(tempDir);
+	}
+
+	@Benchmark
+	public Sequence hmacBytes() throws XPathException {
+		return bytesFunction.eval(bytesArgs, null);
+	}
+
+	@Benchmark
+	public Sequence hmacEncoded() throws XPathException {
+		return encodedFunction.eval(encodedArgs, null);
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.benchmarks;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import javax.xml.XMLConstants;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.DocumentImpl;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.Base64BinaryValueType;
+import org.exist.xquery.value.BinaryValueFromFile;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+
+/**
+ * Builds the benchmark inputs, for each of the input types accepted by the
+ * crypto functions.
+ */
+public final class Payloads {
+
+	private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789"
+			.getBytes(US_ASCII);
+
+	/**
+	 * The largest payload held in memory, as a string or a node, beyond which it
+	 * does not fit the heap of the benchmarks, together with the copies made by
+	 * the functions. Larger payloads can only be
+	 * binary values read from a file.
+	 */
+	public static final int MAX_IN_MEMORY_SIZE = 64 * 1024 * 1024;
+
+	/**
+	 * The largest payload built as a sequence of xs:byte items, one IntegerValue
+	 * of about 90 bytes per byte, beyond which the sequence does not fit the heap
+	 * of the benchmarks.
+	 */
+	public static final int MAX_BYTES_SIZE = 1024 * 1024;
+
+	public enum InputType {
+		STRING, BASE64_BINARY, BYTES, ELEMENT, DOCUMENT
+	}
+
+	private Payloads() {
+	}
+
+	/**
+	 * Generates a repeatable, printable payload of the requested size.
+	 */
+	public static byte[] randomBytes(final int size) {
+		final Random random = new Random(size);
+		final byte[] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+		}
+
+		return bytes;
+	}
+
+	public static Sequence create(final XQueryContext context, final InputType inputType, final byte[] bytes,
+			final Path tempDir) throws IOException, XPathException {
+		if (inputType != InputType.BASE64_BINARY && bytes.length > MAX_IN_MEMORY_SIZE) {
+			throw new IllegalArgumentException(
+					"The payloads of type " + inputType + " cannot be larger than " + MAX_IN_MEMORY_SIZE + " bytes.");
+		}
+		if (inputType == InputType.BYTES && bytes.length > MAX_BYTES_SIZE) {
+			throw new IllegalArgumentException(
+					"The payloads of type " + inputType + " cannot be larger than " + MAX_BYTES_SIZE + " bytes.");
+		}
+
+		switch (inputType) {
+		case STRING:
+			return new StringValue(new String(bytes, US_ASCII));
+
+		case BASE64_BINARY:
+			final Path file = Files.createTempFile(tempDir, "payload", ".bin");
+			try (final OutputStream os = Files.newOutputStream(file)) {
+				os.write(bytes);
+			}
+			return BinaryValueFromFile.getInstance(context, new Base64BinaryValueType(), file);
+
+		case BYTES:
+			final ValueSequence sequence = new ValueSequence(bytes.length);
+			for (final byte b : bytes) {
+				sequence.add(new IntegerValue(b, Type.BYTE));
+			}
+			return sequence;
+
+		case ELEMENT:
+			return (NodeValue) document(context, bytes).getDocumentElement();
+
+		case DOCUMENT:
+			return document(context, bytes);
+
+		default:
+			throw new IllegalArgumentException("Unknown input type: " + inputType);
+		}
+	}
+
+	public static DocumentImpl document(final XQueryContext context, final byte[] bytes) {
+		final MemTreeBuilder builder = new MemTreeBuilder(context);
+		builder.startDocument();
+		builder.startElement(new QName("payload", XMLConstants.NULL_NS_URI), null);
+		builder.characters(new String(bytes, US_ASCII));
+		builder.endElement();
+		builder.endDocument();
+
+		return builder.getDocument();
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.expath.exist.crypto.digitalSignature.GenerateSignatureFunction;
+import org.expath.exist.crypto.digitalSignature.ValidateSignatureFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks crypto:generate-signature() with a generated key pair, and
+ * crypto:validate-signature() on the resulting enveloped signature.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class SignatureBenchmark {
+
+	@Param({ "64", "1024", "65536", "1048576", "67108864" })
+	private int size;
+
+	@Param({ "DSA_SHA256", "RSA_SHA1" })
+	private String signatureAlgorithm;
+
+	@Param({ "SHA1", "SHA256", "SHA512" })
+	private String digestAlgorithm;
+
+	private GenerateSignatureFunction generateFunction;
+	private ValidateSignatureFunction validateFunction;
+	private Sequence[] generateArgs;
+	private Sequence[] validateArgs;
+
+	@Setup(Level.Trial)
+	public void setUp(final EmbeddedDatabase.Session session) throws Exception {
+		generateFunction = new GenerateSignatureFunction(session.getContext(),
+				GenerateSignatureFunction.FS_GENERATE_SIGNATURE[0]);
+		generateArgs = new Sequence[] { Payloads.document(session.getContext(), Payloads.randomBytes(size)),
+				new StringValue("inclusive"), new StringValue(digestAlgorithm), new StringValue(signatureAlgorithm),
+				new StringValue("dsig"), new StringValue("enveloped") };
+
+		validateFunction = new ValidateSignatureFunction(session.getContext(),
+				ValidateSignatureFunction.FS_VALIDATE_SIGNATURE[0]);
+		validateArgs = new Sequence[] { generateFunction.eval(generateArgs, null) };
+	}
+
+	@Benchmark
+	public Sequence generateSignature() throws XPathException {
+		return generateFunction.eval(generateArgs, null);
+	}
+
+	@Benchmark
+	public Sequence validateSignature() throws XPathException {
+		return validateFunction.eval(validateArgs, null);
+	}
+}
@@ -30,13 +30,31 @@ import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.ErrorCodes.ErrorCode;
 import org.exist.xquery.value.FunctionParameterSequenceType;
 import org.exist.xquery.value.FunctionReturnSequenceType;
+import org.expath.exist.crypto.digest.DigestEngines;
+import org.expath.exist.crypto.digest.DigestHandles;
 import org.expath.exist.crypto.digest.HashFunction;
+import org.expath.exist.crypto.digest.HashResourceFunction;
 import org.expath.exist.crypto.digest.HmacFunction;
+import org.expath.exist.crypto.digest.HmacKeyCache;
+import org.expath.exist.crypto.digest.IncrementalHashFunctions;
+import org.expath.exist.crypto.digest.SignRequestV4Function;
+import org.expath.exist.crypto.digest.SigningKeyCache;
+import org.expath.exist.crypto.digest.TreeHash;
+import org.expath.exist.crypto.digest.TreeHashFunction;
+import org.expath.exist.crypto.digitalSignature.DocumentBuilderPool;
 import org.expath.exist.crypto.digitalSignature.GenerateSignatureFunction;
+import org.expath.exist.crypto.digitalSignature.KeyPairPool;
+import org.expath.exist.crypto.digitalSignature.KeyStoreCache;
 import org.expath.exist.crypto.digitalSignature.ValidateSignatureFunction;
+import org.expath.exist.crypto.digitalSignature.ValidateSignaturesFunction;
+import org.expath.exist.crypto.digitalSignature.ValidationCache;
+import org.expath.exist.crypto.digitalSignature.ValidationExecutor;
+import org.expath.exist.crypto.encrypt.Ciphers;
+import org.expath.exist.crypto.encrypt.DecryptRangeFunction;
 import org.expath.exist.crypto.encrypt.EncryptionFunctions;
+import org.expath.exist.crypto.encrypt.SegmentedEncryption;
+import org.expath.exist.crypto.metrics.CryptoMetrics;
 
-import ro.kuberam.libs.java.crypto.CryptoError;
 import ro.kuberam.libs.java.crypto.ExpathCryptoModule;
 
 import static org.exist.xquery.FunctionDSL.functionDefs;
@@ -58,13 +76,50 @@ public class ExistExpathCryptoModule extends AbstractInternalModule {
 	public final static ErrorCode NO_FUNCTION = new ExpathCryptoErrorCode("NO_FUNCTION", "No function");
 
 	private final static FunctionDef[] functions = functionDefs(functionDefs(HashFunction.class, HashFunction.FS_HASH),
+			functionDefs(HashResourceFunction.class, HashResourceFunction.FS_HASH_RESOURCE),
+			functionDefs(TreeHashFunction.class, TreeHashFunction.FS_TREE_HASH),
 			functionDefs(HmacFunction.class, HmacFunction.FS_HMAC),
+			functionDefs(IncrementalHashFunctions.class, IncrementalHashFunctions.FS_HASH_INIT,
+					IncrementalHashFunctions.FS_HMAC_INIT, IncrementalHashFunctions.FS_HASH_UPDATE,
+					IncrementalHashFunctions.FS_HASH_CLONE),
+			functionDefs(IncrementalHashFunctions.class, IncrementalHashFunctions.FS_HASH_FINAL),
+			functionDefs(SignRequestV4Function.class, SignRequestV4Function.FS_SIGN_REQUEST_V4),
 			functionDefs(GenerateSignatureFunction.class, GenerateSignatureFunction.FS_GENERATE_SIGNATURE),
 			functionDefs(ValidateSignatureFunction.class, ValidateSignatureFunction.FS_VALIDATE_SIGNATURE),
-			functionDefs(EncryptionFunctions.class, EncryptionFunctions.FS_ENCRYPT, EncryptionFunctions.FS_DECRYPT));
+			functionDefs(ValidateSignaturesFunction.class, ValidateSignaturesFunction.FS_VALIDATE_SIGNATURES),
+			functionDefs(EncryptionFunctions.class, EncryptionFunctions.FS_ENCRYPT),
+			functionDefs(EncryptionFunctions.class, EncryptionFunctions.FS_DECRYPT),
+			functionDefs(DecryptRangeFunction.class, DecryptRangeFunction.FS_DECRYPT_RANGE));
 
 	public ExistExpathCryptoModule(final Map<String, List<? extends Object>> parameters) throws Exception {
 		super(functions, parameters);
+
+		configure(ModuleProperties.parse(parameters));
+		CryptoMetrics.register();
+	}
+
+	/**
+	 * Applies the properties to the caches and pools shared by the queries. The
+	 * module is instantiated for each query context, so this is only done when
+	 * the properties are configured for the first time, or have changed.
+	 */
+	private static synchronized void configure(final ModuleProperties properties) {
+		if (!ModuleProperties.configure(properties)) {
+			return;
+		}
+
+		DigestEngines.configure(properties.getDigestEngineCacheSize());
+		HmacKeyCache.configure(properties.getHmacKeyCacheSize(), properties.getHmacKeyCacheTtl());
+		DigestHandles.configure(properties.getHashHandleRegistrySize(), properties.getHashHandleTtl());
+		SigningKeyCache.configure(properties.getSigningKeyCacheSize());
+		KeyStoreCache.configure(properties.getKeyStoreCacheSize(), properties.getKeyStoreCacheTtl());
+		KeyPairPool.configure(properties.getKeyPairPoolSize(), properties.getKeyPairLifetime());
+		ValidationCache.configure(properties.getValidationCacheSize(), properties.getValidationCacheTtl());
+		DocumentBuilderPool.configure(properties.getDocumentBuilderPoolSize());
+		Ciphers.configure(properties.getCipherCacheSize());
+		ValidationExecutor.configure(properties.getValidationParallelism());
+		TreeHash.configure(properties.getHashParallelism());
+		SegmentedEncryption.configure(properties.getEncryptionParallelism(), properties.getEncryptionSegmentSize());
 	}
 
 	@Override
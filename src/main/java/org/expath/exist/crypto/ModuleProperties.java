@@ -19,6 +19,398 @@
  */
 package org.expath.exist.crypto;
 
-public class ModuleProperties {
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
-}
\ No newline at end of file
+import javax.annotation.Nullable;
+
+import org.expath.exist.crypto.digest.DigestEngines;
+import org.expath.exist.crypto.digest.DigestHandles;
+import org.expath.exist.crypto.digest.HmacKeyCache;
+import org.expath.exist.crypto.digest.SigningKeyCache;
+import org.expath.exist.crypto.digitalSignature.DocumentBuilderPool;
+import org.expath.exist.crypto.digitalSignature.KeyPairPool;
+import org.expath.exist.crypto.digitalSignature.KeyStoreCache;
+import org.expath.exist.crypto.digitalSignature.ValidationCache;
+import org.expath.exist.crypto.encrypt.Ciphers;
+import org.expath.exist.crypto.encrypt.SegmentedEncryption;
+
+/**
+ * The tuning parameters of the module, read from its declaration in eXist's
+ * conf.xml, e.g.
+ *
+ * <pre>
+ * &lt;module uri="http://expath.org/ns/crypto" class="org.expath.exist.crypto.ExistExpathCryptoModule"&gt;
+ *     &lt;parameter name="hmac-key-cache-size" value="256" /&gt;
+ * &lt;/module&gt;
+ * </pre>
+ *
+ * The properties are available to the functions through {@link #get()}. They
+ * are applied to the caches and pools of the module when it is first
+ * instantiated, and then only when they change, as eXist-db instantiates the
+ * module for each query context. A missing parameter takes its default
+ * value, and a parameter which is not a non-negative integer, where one is
+ * expected, makes the module fail to load.
+ *
+ * @author <a href="mailto:claudius.teodorescu@gmail.com">Claudius
+ *         Teodorescu</a>
+ */
+public final class ModuleProperties {
+
+	public static final String DIGEST_ENGINE_CACHE_SIZE = "digest-engine-cache-size";
+	public static final String HMAC_KEY_CACHE_SIZE = "hmac-key-cache-size";
+	public static final String HMAC_KEY_CACHE_TTL = "hmac-key-cache-ttl";
+	public static final String HASH_HANDLE_REGISTRY_SIZE = "hash-handle-registry-size";
+	public static final String HASH_HANDLE_TTL = "hash-handle-ttl";
+	public static final String SIGNING_KEY_CACHE_SIZE = "signing-key-cache-size";
+	public static final String KEYSTORE_CACHE_SIZE = "keystore-cache-size";
+	public static final String KEYSTORE_CACHE_TTL = "keystore-cache-ttl";
+	public static final String KEY_PAIR_POOL_SIZE = "key-pair-pool-size";
+	public static final String KEY_PAIR_LIFETIME = "key-pair-lifetime";
+	public static final String VALIDATION_CACHE_SIZE = "validation-cache-size";
+	public static final String VALIDATION_CACHE_TTL = "validation-cache-ttl";
+	public static final String DOCUMENT_BUILDER_POOL_SIZE = "document-builder-pool-size";
+	public static final String CIPHER_CACHE_SIZE = "cipher-cache-size";
+	public static final String PARALLELISM = "parallelism";
+	public static final String VALIDATION_PARALLELISM = "validation-parallelism";
+	public static final String HASH_PARALLELISM = "hash-parallelism";
+	public static final String ENCRYPTION_PARALLELISM = "encryption-parallelism";
+	public static final String ENCRYPTION_SEGMENT_SIZE = "encryption-segment-size";
+	public static final String STREAM_CHUNK_SIZE = "stream-chunk-size";
+	public static final String BINARY_SPILL_THRESHOLD = "binary-spill-threshold";
+	public static final String DEFAULT_PROVIDER = "default-provider";
+
+	public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+	public static final int DEFAULT_STREAM_CHUNK_SIZE = 8192;
+	public static final int DEFAULT_BINARY_SPILL_THRESHOLD = 1024 * 1024;
+
+	private static volatile ModuleProperties current = new ModuleProperties(Collections.emptyMap());
+	private static boolean configured = false;
+
+	private final int digestEngineCacheSize;
+	private final int hmacKeyCacheSize;
+	private final long hmacKeyCacheTtl;
+	private final int hashHandleRegistrySize;
+	private final long hashHandleTtl;
+	private final int signingKeyCacheSize;
+	private final int keyStoreCacheSize;
+	private final long keyStoreCacheTtl;
+	private final int keyPairPoolSize;
+	private final long keyPairLifetime;
+	private final int validationCacheSize;
+	private final long validationCacheTtl;
+	private final int documentBuilderPoolSize;
+	private final int cipherCacheSize;
+	private final int validationParallelism;
+	private final int hashParallelism;
+	private final int encryptionParallelism;
+	private final int encryptionSegmentSize;
+	private final int streamChunkSize;
+	private final int binarySpillThreshold;
+	@Nullable
+	private final String defaultProvider;
+
+	private ModuleProperties(final Map<String, List<? extends Object>> parameters) {
+		this.digestEngineCacheSize = intValue(parameters, DIGEST_ENGINE_CACHE_SIZE, DigestEngines.DEFAULT_MAX_SIZE,
+				0);
+		this.hmacKeyCacheSize = intValue(parameters, HMAC_KEY_CACHE_SIZE, HmacKeyCache.DEFAULT_MAX_SIZE, 0);
+		this.hmacKeyCacheTtl = longValue(parameters, HMAC_KEY_CACHE_TTL, HmacKeyCache.DEFAULT_TTL, 0);
+		this.hashHandleRegistrySize = intValue(parameters, HASH_HANDLE_REGISTRY_SIZE, DigestHandles.DEFAULT_MAX_SIZE,
+				1);
+		this.hashHandleTtl = longValue(parameters, HASH_HANDLE_TTL, DigestHandles.DEFAULT_TTL, 0);
+		this.signingKeyCacheSize = intValue(parameters, SIGNING_KEY_CACHE_SIZE, SigningKeyCache.DEFAULT_MAX_SIZE, 0);
+		this.keyStoreCacheSize = intValue(parameters, KEYSTORE_CACHE_SIZE, KeyStoreCache.DEFAULT_MAX_SIZE, 0);
+		this.keyStoreCacheTtl = longValue(parameters, KEYSTORE_CACHE_TTL, KeyStoreCache.DEFAULT_TTL, 0);
+		this.keyPairPoolSize = intValue(parameters, KEY_PAIR_POOL_SIZE, KeyPairPool.DEFAULT_MAX_SIZE, 0);
+		this.keyPairLifetime = longValue(parameters, KEY_PAIR_LIFETIME, KeyPairPool.DEFAULT_LIFETIME, 0);
+		this.validationCacheSize = intValue(parameters, VALIDATION_CACHE_SIZE, ValidationCache.DEFAULT_MAX_SIZE, 0);
+		this.validationCacheTtl = longValue(parameters, VALIDATION_CACHE_TTL, ValidationCache.DEFAULT_TTL, 0);
+		this.documentBuilderPoolSize = intValue(parameters, DOCUMENT_BUILDER_POOL_SIZE,
+				DocumentBuilderPool.DEFAULT_MAX_IDLE, 1);
+		this.cipherCacheSize = intValue(parameters, CIPHER_CACHE_SIZE, Ciphers.DEFAULT_MAX_SIZE, 0);
+
+		final int parallelism = intValue(parameters, PARALLELISM, DEFAULT_PARALLELISM, 1);
+		this.validationParallelism = intValue(parameters, VALIDATION_PARALLELISM, parallelism, 1);
+		this.hashParallelism = intValue(parameters, HASH_PARALLELISM, parallelism, 1);
+		this.encryptionParallelism = intValue(parameters, ENCRYPTION_PARALLELISM, parallelism, 1);
+		this.encryptionSegmentSize = intValue(parameters, ENCRYPTION_SEGMENT_SIZE,
+				SegmentedEncryption.DEFAULT_SEGMENT_SIZE, 1);
+		this.streamChunkSize = intValue(parameters, STREAM_CHUNK_SIZE, DEFAULT_STREAM_CHUNK_SIZE, 1);
+		this.binarySpillThreshold = intValue(parameters, BINARY_SPILL_THRESHOLD, DEFAULT_BINARY_SPILL_THRESHOLD, 0);
+
+		final String provider = stringValue(parameters, DEFAULT_PROVIDER);
+		this.defaultProvider = provider == null || provider.isEmpty() ? null : provider;
+	}
+
+	/**
+	 * Reads the properties from the parameters of the module.
+	 *
+	 * @throws IllegalArgumentException if a parameter has an invalid value
+	 */
+	static ModuleProperties parse(@Nullable final Map<String, List<? extends Object>> parameters) {
+		return new ModuleProperties(parameters == null ? Collections.emptyMap() : parameters);
+	}
+
+	/**
+	 * Makes the properties the current ones, unless they already are.
+	 *
+	 * @return true if the properties are configured for the first time, or have
+	 *         changed, and have to be applied to the caches and pools
+	 */
+	static synchronized boolean configure(final ModuleProperties properties) {
+		if (configured && properties.equals(current)) {
+			return false;
+		}
+
+		current = properties;
+		configured = true;
+
+		return true;
+	}
+
+	/**
+	 * Returns the current properties, or the default ones.
+	 */
+	public static ModuleProperties get() {
+		return current;
+	}
+
+	/**
+	 * The maximum number of {@link java.security.MessageDigest} engines, and of
+	 * {@link javax.crypto.Mac} engines, kept per thread, 0 disabling the caches.
+	 */
+	public int getDigestEngineCacheSize() {
+		return digestEngineCacheSize;
+	}
+
+	/**
+	 * The maximum number of secret keys for which crypto:hmac() keeps an
+	 * initialised engine, 0 disabling the cache.
+	 */
+	public int getHmacKeyCacheSize() {
+		return hmacKeyCacheSize;
+	}
+
+	/**
+	 * The time to live of a cached HMAC key, in milliseconds, 0 meaning no expiry.
+	 */
+	public long getHmacKeyCacheTtl() {
+		return hmacKeyCacheTtl;
+	}
+
+	/**
+	 * The maximum number of handles of incremental hash, or HMAC, computations
+	 * that are kept.
+	 */
+	public int getHashHandleRegistrySize() {
+		return hashHandleRegistrySize;
+	}
+
+	/**
+	 * The time after which an unused handle of an incremental hash, or HMAC,
+	 * computation expires, in milliseconds, 0 meaning no expiry.
+	 */
+	public long getHashHandleTtl() {
+		return hashHandleTtl;
+	}
+
+	/**
+	 * The maximum number of signing keys of AWS Signature Version 4 that
+	 * crypto:sign-request-v4() keeps, 0 disabling the cache.
+	 */
+	public int getSigningKeyCacheSize() {
+		return signingKeyCacheSize;
+	}
+
+	/**
+	 * The maximum number of signing keys loaded from keystores that are kept, 0
+	 * disabling the cache.
+	 */
+	public int getKeyStoreCacheSize() {
+		return keyStoreCacheSize;
+	}
+
+	/**
+	 * The time to live of a cached signing key, in milliseconds, 0 meaning no
+	 * expiry.
+	 */
+	public long getKeyStoreCacheTtl() {
+		return keyStoreCacheTtl;
+	}
+
+	/**
+	 * The maximum number of pre-generated key pairs, per algorithm and key size,
+	 * for the signatures generated without a certificate, 0 disabling the pools.
+	 */
+	public int getKeyPairPoolSize() {
+		return keyPairPoolSize;
+	}
+
+	/**
+	 * The time during which a generated key pair is reused for the signatures
+	 * generated without a certificate, in milliseconds, 0 meaning that each
+	 * signature has its own key pair.
+	 */
+	public long getKeyPairLifetime() {
+		return keyPairLifetime;
+	}
+
+	/**
+	 * The maximum number of outcomes of signature validations that are kept, 0
+	 * disabling the cache.
+	 */
+	public int getValidationCacheSize() {
+		return validationCacheSize;
+	}
+
+	/**
+	 * The time to live of a cached validation outcome, in milliseconds, 0 meaning
+	 * no expiry.
+	 */
+	public long getValidationCacheTtl() {
+		return validationCacheTtl;
+	}
+
+	/**
+	 * The maximum number of idle DOM builders kept for the digital signature
+	 * functions.
+	 */
+	public int getDocumentBuilderPoolSize() {
+		return documentBuilderPoolSize;
+	}
+
+	/**
+	 * The maximum number of initialised ciphers kept per thread, 0 disabling the
+	 * cache.
+	 */
+	public int getCipherCacheSize() {
+		return cipherCacheSize;
+	}
+
+	/**
+	 * The number of signatures validated concurrently by
+	 * crypto:validate-signatures(), across all queries.
+	 */
+	public int getValidationParallelism() {
+		return validationParallelism;
+	}
+
+	/**
+	 * The number of leaves hashed concurrently by crypto:tree-hash(), across all
+	 * queries.
+	 */
+	public int getHashParallelism() {
+		return hashParallelism;
+	}
+
+	/**
+	 * The number of segments encrypted or decrypted concurrently by the
+	 * 'AES-GCM-SEGMENTED' algorithm, across all queries.
+	 */
+	public int getEncryptionParallelism() {
+		return encryptionParallelism;
+	}
+
+	/**
+	 * The size, in bytes, of the segments of the data encrypted with the
+	 * 'AES-GCM-SEGMENTED' algorithm.
+	 */
+	public int getEncryptionSegmentSize() {
+		return encryptionSegmentSize;
+	}
+
+	/**
+	 * The size, in bytes, of the chunks in which streamed data is hashed,
+	 * encrypted, or decrypted.
+	 */
+	public int getStreamChunkSize() {
+		return streamChunkSize;
+	}
+
+	/**
+	 * The size, in bytes, up to which a binary result is kept in memory, beyond
+	 * which it is written into a temporary file.
+	 */
+	public int getBinarySpillThreshold() {
+		return binarySpillThreshold;
+	}
+
+	/**
+	 * The cryptographic provider used by the encryption functions when none is
+	 * given, or null for the default one of the JVM.
+	 */
+	@Nullable
+	public String getDefaultProvider() {
+		return defaultProvider;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ModuleProperties)) {
+			return false;
+		}
+
+		final ModuleProperties other = (ModuleProperties) obj;
+		return digestEngineCacheSize == other.digestEngineCacheSize && hmacKeyCacheSize == other.hmacKeyCacheSize
+				&& hmacKeyCacheTtl == other.hmacKeyCacheTtl && hashHandleRegistrySize == other.hashHandleRegistrySize
+				&& hashHandleTtl == other.hashHandleTtl && signingKeyCacheSize == other.signingKeyCacheSize
+				&& keyStoreCacheSize == other.keyStoreCacheSize && keyStoreCacheTtl == other.keyStoreCacheTtl
+				&& keyPairPoolSize == other.keyPairPoolSize && keyPairLifetime == other.keyPairLifetime
+				&& validationCacheSize == other.validationCacheSize && validationCacheTtl == other.validationCacheTtl
+				&& documentBuilderPoolSize == other.documentBuilderPoolSize
+				&& cipherCacheSize == other.cipherCacheSize && validationParallelism == other.validationParallelism
+				&& hashParallelism == other.hashParallelism && encryptionParallelism == other.encryptionParallelism
+				&& encryptionSegmentSize == other.encryptionSegmentSize && streamChunkSize == other.streamChunkSize
+				&& binarySpillThreshold == other.binarySpillThreshold
+				&& Objects.equals(defaultProvider, other.defaultProvider);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(digestEngineCacheSize, hmacKeyCacheSize, hmacKeyCacheTtl, hashHandleRegistrySize,
+				hashHandleTtl, signingKeyCacheSize, keyStoreCacheSize, keyStoreCacheTtl, keyPairPoolSize,
+				keyPairLifetime, validationCacheSize, validationCacheTtl, documentBuilderPoolSize, cipherCacheSize,
+				validationParallelism, hashParallelism, encryptionParallelism, encryptionSegmentSize, streamChunkSize,
+				binarySpillThreshold, defaultProvider);
+	}
+
+	@Nullable
+	private static String stringValue(final Map<String, List<? extends Object>> parameters, final String name) {
+		final List<? extends Object> values = parameters.get(name);
+		if (values == null || values.isEmpty() || values.get(0) == null) {
+			return null;
+		}
+
+		return values.get(0).toString().trim();
+	}
+
+	private static long longValue(final Map<String, List<? extends Object>> parameters, final String name,
+			final long defaultValue, final long minValue) {
+		final String value = stringValue(parameters, name);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			final long longValue = Long.parseLong(value);
+			if (longValue >= minValue) {
+				return longValue;
+			}
+		} catch (final NumberFormatException e) {
+			// reported below
+		}
+
+		throw new IllegalArgumentException(
+				"The value of the parameter '" + name + "' must be an integer of at least " + minValue + ": " + value);
+	}
+
+	private static int intValue(final Map<String, List<? extends Object>> parameters, final String name,
+			final int defaultValue, final int minValue) {
+		return (int) Math.min(Integer.MAX_VALUE, longValue(parameters, name, defaultValue, minValue));
+	}
+}
@@ -0,0 +1,285 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+
+import org.exist.xquery.ErrorCodes.ErrorCode;
+import org.exist.xquery.XPathException;
+import org.expath.exist.crypto.ExpathCryptoErrorCode;
+import org.expath.exist.crypto.ModuleProperties;
+
+import ro.kuberam.libs.java.crypto.CryptoError;
+import ro.kuberam.libs.java.crypto.CryptoException;
+
+/**
+ * Per-thread cache of {@link MessageDigest} and {@link Mac} engines, keyed by
+ * normalised algorithm name (e.g. "SHA-256", "HMAC-SHA-1"), so that the
+ * provider lookup and the engine construction happen once per thread and
+ * algorithm, and not on every call.
+ *
+ * The engines are handed out reset, and must not be retained by the caller
+ * beyond the current call. Each thread keeps at most the configured number of
+ * engines of each kind, the least recently used ones being dropped.
+ */
+public final class DigestEngines {
+
+	public final static ErrorCode UNKNOWN_ENCODING = new ExpathCryptoErrorCode("UNKNOWN_ENCODING",
+			"The encoding is not supported, it has to be \"hex\" or \"base64\".");
+
+	private static final String HMAC_PREFIX = "HMAC";
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	private static final char[] LOWERCASE_HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	public static final int DEFAULT_MAX_SIZE = 16;
+
+	private static volatile int maxSize = DEFAULT_MAX_SIZE;
+
+	private static final ThreadLocal<Map<String, MessageDigest>> MESSAGE_DIGESTS = ThreadLocal
+			.withInitial(DigestEngines::newCache);
+	private static final ThreadLocal<Map<String, Mac>> MACS = ThreadLocal.withInitial(DigestEngines::newCache);
+
+	private DigestEngines() {
+	}
+
+	/**
+	 * Sets the maximum number of {@link MessageDigest}s, and of {@link Mac}s,
+	 * cached per thread, 0 disabling the caches. Larger caches are trimmed on
+	 * their next use.
+	 */
+	public static void configure(final int maxSize) {
+		DigestEngines.maxSize = Math.max(0, maxSize);
+	}
+
+	/**
+	 * Normalises a hashing algorithm name, e.g. "sha256" and "SHA-256" to
+	 * "SHA-256".
+	 */
+	public static String normaliseHashAlgorithm(final String algorithm) {
+		final String name = algorithm.trim().toUpperCase(Locale.ROOT);
+		if (name.startsWith("SHA") && name.length() > 3 && name.substring(3).chars().allMatch(Character::isDigit)) {
+			return "SHA-" + name.substring(3);
+		}
+
+		return name;
+	}
+
+	/**
+	 * Normalises a HMAC algorithm name, e.g. "HmacSha1" and "HMAC-SHA-1" to
+	 * "HMAC-SHA-1".
+	 */
+	public static String normaliseHmacAlgorithm(final String algorithm) {
+		String name = algorithm.trim().toUpperCase(Locale.ROOT);
+		if (name.startsWith(HMAC_PREFIX)) {
+			name = name.substring(HMAC_PREFIX.length());
+			if (name.startsWith("-")) {
+				name = name.substring(1);
+			}
+		}
+
+		return HMAC_PREFIX + "-" + normaliseHashAlgorithm(name);
+	}
+
+	/**
+	 * Gets the reset {@link MessageDigest} for the given algorithm, owned by the
+	 * current thread.
+	 *
+	 * @return the engine, or null if the algorithm is not known to the installed
+	 *         providers.
+	 */
+	@Nullable
+	public static MessageDigest messageDigest(final String algorithm) {
+		final String name = normaliseHashAlgorithm(algorithm);
+		final Map<String, MessageDigest> engines = MESSAGE_DIGESTS.get();
+
+		MessageDigest engine = engines.get(name);
+		if (engine == null) {
+			try {
+				engine = MessageDigest.getInstance(name);
+			} catch (final NoSuchAlgorithmException e) {
+				return null;
+			}
+			engines.put(name, engine);
+		} else {
+			engine.reset();
+		}
+
+		return engine;
+	}
+
+	/**
+	 * Gets the {@link Mac} for the given algorithm, owned by the current thread.
+	 * The engine has to be initialised by the caller with the secret key.
+	 *
+	 * @return the engine, or null if the algorithm is not known to the installed
+	 *         providers.
+	 */
+	@Nullable
+	public static Mac mac(final String algorithm) {
+		final String name = normaliseHmacAlgorithm(algorithm);
+		final Map<String, Mac> engines = MACS.get();
+
+		Mac engine = engines.get(name);
+		if (engine == null) {
+			try {
+				engine = Mac.getInstance(toJcaHmacName(name));
+			} catch (final NoSuchAlgorithmException e) {
+				return null;
+			}
+			engines.put(name, engine);
+		}
+
+		return engine;
+	}
+
+	/**
+	 * Creates a new {@link MessageDigest} for the given algorithm, not owned by
+	 * any thread.
+	 *
+	 * @return the engine, or null if the algorithm is not known to the installed
+	 *         providers.
+	 */
+	@Nullable
+	static MessageDigest newMessageDigest(final String algorithm) {
+		try {
+			return MessageDigest.getInstance(normaliseHashAlgorithm(algorithm));
+		} catch (final NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a new {@link Mac} for the given algorithm, not owned by any thread.
+	 *
+	 * @return the engine, or null if the algorithm is not known to the installed
+	 *         providers.
+	 */
+	@Nullable
+	static Mac newMac(final String algorithm) {
+		try {
+			return Mac.getInstance(toJcaHmacName(normaliseHmacAlgorithm(algorithm)));
+		} catch (final NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Feeds all the remaining bytes of the stream into the engine, and returns
+	 * their number.
+	 */
+	public static long update(final MessageDigest engine, final InputStream is) throws IOException {
+		final byte[] buf = new byte[ModuleProperties.get().getStreamChunkSize()];
+		long count = 0;
+		int read = -1;
+		while ((read = is.read(buf)) > -1) {
+			engine.update(buf, 0, read);
+			count += read;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Feeds all the remaining bytes of the stream into the engine, and returns
+	 * their number.
+	 */
+	public static long update(final Mac engine, final InputStream is) throws IOException {
+		final byte[] buf = new byte[ModuleProperties.get().getStreamChunkSize()];
+		long count = 0;
+		int read = -1;
+		while ((read = is.read(buf)) > -1) {
+			engine.update(buf, 0, read);
+			count += read;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Encodes the result bytes, as "hex" or "base64".
+	 */
+	public static String encode(final byte[] bytes, final String encoding) throws XPathException {
+		checkEncoding(encoding);
+
+		return "hex".equals(encoding) ? hex(bytes, HEX_DIGITS) : Base64.getEncoder().encodeToString(bytes);
+	}
+
+	/**
+	 * Checks that an encoding of the result bytes is supported, before the
+	 * data is hashed.
+	 */
+	public static void checkEncoding(final String encoding) throws XPathException {
+		if (!"hex".equals(encoding) && !"base64".equals(encoding)) {
+			throw new XPathException(UNKNOWN_ENCODING, UNKNOWN_ENCODING.getDescription() + " Encoding: " + encoding);
+		}
+	}
+
+	/**
+	 * Reports an algorithm which is not known to the installed providers, with
+	 * the error the library reports for it, err:CX21.
+	 */
+	public static CryptoException unknownAlgorithm(final String algorithm) {
+		return new CryptoException(CryptoError.NoSuchAlgorithmException, new NoSuchAlgorithmException(algorithm));
+	}
+
+	/**
+	 * Encodes the bytes as lowercase hex string, the form of the tree hashes
+	 * and of the AWS signatures.
+	 */
+	public static String hex(final byte[] bytes) {
+		return hex(bytes, LOWERCASE_HEX_DIGITS);
+	}
+
+	private static String hex(final byte[] bytes, final char[] digits) {
+		final char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = digits[(bytes[i] >> 4) & 0x0F];
+			chars[i * 2 + 1] = digits[bytes[i] & 0x0F];
+		}
+
+		return new String(chars);
+	}
+
+	private static <V> Map<String, V> newCache() {
+		return new LinkedHashMap<String, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, V> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	private static String toJcaHmacName(final String normalisedName) {
+		// HMAC-SHA-256 -> HmacSHA256
+		return "Hmac" + normalisedName.substring(HMAC_PREFIX.length() + 1).replace("-", "");
+	}
+}
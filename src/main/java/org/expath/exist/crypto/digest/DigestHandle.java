@@ -0,0 +1,138 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+
+/**
+ * The midstream state of an incremental hash, or HMAC, computation, which is
+ * fed with chunks of data in separate calls. The calls on a handle are
+ * serialised, as the engines are not thread-safe.
+ */
+final class DigestHandle {
+
+	private final String algorithm;
+	private final String owner;
+	@Nullable
+	private final MessageDigest messageDigest;
+	@Nullable
+	private final Mac mac;
+	private boolean completed = false;
+
+	private DigestHandle(final String algorithm, final String owner, @Nullable final MessageDigest messageDigest,
+			@Nullable final Mac mac) {
+		this.algorithm = algorithm;
+		this.owner = owner;
+		this.messageDigest = messageDigest;
+		this.mac = mac;
+	}
+
+	static DigestHandle of(final String algorithm, final String owner, final MessageDigest messageDigest) {
+		return new DigestHandle(algorithm, owner, messageDigest, null);
+	}
+
+	static DigestHandle of(final String algorithm, final String owner, final Mac mac) {
+		return new DigestHandle(algorithm, owner, null, mac);
+	}
+
+	String getAlgorithm() {
+		return algorithm;
+	}
+
+	String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Feeds the bytes into the engine.
+	 *
+	 * @return false if the computation is already completed
+	 */
+	synchronized boolean update(final byte[] data) {
+		if (completed) {
+			return false;
+		}
+
+		if (messageDigest != null) {
+			messageDigest.update(data);
+		} else {
+			mac.update(data);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Feeds all the remaining bytes of the stream into the engine.
+	 *
+	 * @return false if the computation is already completed
+	 */
+	synchronized boolean update(final InputStream data) throws IOException {
+		if (completed) {
+			return false;
+		}
+
+		if (messageDigest != null) {
+			DigestEngines.update(messageDigest, data);
+		} else {
+			DigestEngines.update(mac, data);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Completes the computation.
+	 *
+	 * @return the hash, or the authentication code, or null if the computation is
+	 *         already completed
+	 */
+	@Nullable
+	synchronized byte[] complete() {
+		if (completed) {
+			return null;
+		}
+		completed = true;
+
+		return messageDigest != null ? messageDigest.digest() : mac.doFinal();
+	}
+
+	/**
+	 * Copies the midstream state into a new, independent, handle.
+	 *
+	 * @return the copy, or null if the computation is already completed
+	 * @throws CloneNotSupportedException if the provider of the engine does not
+	 *                                    support cloning
+	 */
+	@Nullable
+	synchronized DigestHandle copy() throws CloneNotSupportedException {
+		if (completed) {
+			return null;
+		}
+
+		return messageDigest != null ? of(algorithm, owner, (MessageDigest) messageDigest.clone())
+				: of(algorithm, owner, (Mac) mac.clone());
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digest;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.expath.exist.crypto.utils.BoundedCache;
+
+/**
+ * Bounded registry of the {@link DigestHandle}s of the incremental hash and
+ * HMAC computations, keyed by random identifiers. A handle expires when it has
+ * not been used for the time to live, and the least recently used handle is
+ * discarded when the registry is full.
+ */
+public final class DigestHandles {
+
+	public static final int DEFAULT_MAX_SIZE = 1024;
+	public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(1);
+
+	private static final BoundedCache<DigestHandle> HANDLES = new BoundedCache<>(DEFAULT_MAX_SIZE, DEFAULT_TTL, true);
+
+	private DigestHandles() {
+	}
+
+	/**
+	 * Sets the maximum number of handles (at least 1), and the time to live of an
+	 * unused handle, in milliseconds (0 means no expiry).
+	 */
+	public static void configure(final int maxSize, final long ttl) {
+		HANDLES.configure(Math.max(1, maxSize), ttl);
+	}
+
+	/**
+	 * Registers a handle.
+	 *
+	 * @return its identifier
+	 */
+	static String register(final DigestHandle handle) {
+		final String id = UUID.randomUUID().toString();
+		HANDLES.put(id, handle);
+
+		return id;
+	}
+
+	/**
+	 * Gets a handle, which is then considered used.
+	 *
+	 * @param owner the name of the user asking for the handle, who has to be the
+	 *              one who created it
+	 * @return the handle, or null if it is unknown, expired, or owned by another
+	 *         user
+	 */
+	@Nullable
+	static DigestHandle get(final String id, final String owner) {
+		final DigestHandle handle = HANDLES.get(id);
+
+		return handle != null && handle.getOwner().equals(owner) ? handle : null;
+	}
+
+	static void remove(final String id) {
+		HANDLES.remove(id);
+	}
+
+	public static int size() {
+		return HANDLES.size();
+	}
+
+	public static void clear() {
+		HANDLES.clear();
+	}
+}
@@ -25,22 +25,39 @@ package org.expath.exist.crypto.digest;
  * @author <a href="mailto:claudius.teodorescu@gmail.com">Claudius Teodorescu</a>
  */
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
 import java.util.Optional;
+import java.util.Properties;
+
+import javax.xml.transform.OutputKeys;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.exist.util.serializer.SAXSerializer;
 import org.exist.xquery.BasicFunction;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
 import org.exist.xquery.value.BinaryValue;
 import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.NodeValue;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.StringValue;
 import org.exist.xquery.value.Type;
 import org.expath.exist.crypto.EXpathCryptoException;
+import org.expath.exist.crypto.metrics.CryptoMetrics;
+import org.expath.exist.crypto.metrics.FunctionMetrics;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import ro.kuberam.libs.java.crypto.CryptoException;
 import ro.kuberam.libs.java.crypto.digest.Hash;
@@ -57,12 +74,23 @@ public class HashFunction extends BasicFunction {
 			"The data to be hashed.");
 	private static final FunctionParameterSequenceType FS_HASH_PARAM_ALGORITHM = param("algorithm", Type.STRING,
 			"The cryptographic hashing algorithm.");
+	private static final FunctionParameterSequenceType FS_HASH_PARAM_ENCODING = param("encoding", Type.STRING,
+			"The encoding of the output. The legal values are \"hex\" and \"base64\". The default value is \"base64\".");
 
 	public static final FunctionSignature FS_HASH[] = functionSignatures(FS_HASH_NAME,
 			"resulting hash value, as string.", returnsOptMany(Type.BYTE),
 			arities(arity(FS_HASH_PARAM_DATA, FS_HASH_PARAM_ALGORITHM),
-					arity(FS_HASH_PARAM_DATA, FS_HASH_PARAM_ALGORITHM, param("encoding", Type.STRING,
-							"The encoding of the output. The legal values are \"hex\" and \"base64\". The default value is \"base64\"."))));
+					arity(FS_HASH_PARAM_DATA, FS_HASH_PARAM_ALGORITHM, FS_HASH_PARAM_ENCODING),
+					arity(FS_HASH_PARAM_DATA, FS_HASH_PARAM_ALGORITHM, FS_HASH_PARAM_ENCODING, param("serialization",
+							Type.BOOLEAN,
+							"Whether elements and documents are hashed as their serialized markup (true), or as their string value (false). The default value is false."))));
+
+	private static final Properties SERIALIZATION_PROPERTIES = new Properties();
+	static {
+		SERIALIZATION_PROPERTIES.setProperty(OutputKeys.INDENT, "no");
+		SERIALIZATION_PROPERTIES.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+		SERIALIZATION_PROPERTIES.setProperty(OutputKeys.ENCODING, UTF_8.name());
+	}
 
 	public HashFunction(final XQueryContext context, final FunctionSignature signature) {
 		super(context, signature);
@@ -70,17 +98,61 @@ public class HashFunction extends BasicFunction {
 
 	@Override
 	public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+		final FunctionMetrics metrics = CryptoMetrics.metrics(FS_HASH_NAME,
+				DigestEngines.normaliseHashAlgorithm(args[1].getStringValue()));
+		final long startTime = System.nanoTime();
+		boolean failed = true;
+		try {
+			final Sequence result = hash(args, metrics);
+			failed = false;
+
+			return result;
+		} finally {
+			metrics.record(startTime, failed);
+		}
+	}
 
+	private Sequence hash(final Sequence[] args, final FunctionMetrics metrics) throws XPathException {
 		final int inputType = args[0].itemAt(0).getType();
 		final String hashAlgorithm = args[1].getStringValue();
-		final String encoding = Optional.ofNullable(args[2].getStringValue()).filter(str -> !str.isEmpty())
-				.orElse("base64");
+		final String encoding = Optional.ofNullable(args.length >= 3 ? args[2].getStringValue() : null)
+				.filter(str -> !str.isEmpty()).orElse("base64");
 		LOG.debug("encoding = {}", () -> encoding);
+		DigestEngines.checkEncoding(encoding);
+		final boolean serialization = args.length == 4 && !args[3].isEmpty() && args[3].effectiveBooleanValue();
+
+		final MessageDigest engine = DigestEngines.messageDigest(hashAlgorithm);
 
 		final Sequence result;
-		if (inputType == Type.STRING || inputType == Type.ELEMENT || inputType == Type.DOCUMENT) {
+		if (inputType == Type.ELEMENT || inputType == Type.DOCUMENT) {
+			final NodeValue node = (NodeValue) args[0].itemAt(0);
 			try {
-				result = new StringValue(Hash.hashString(args[0].getStringValue(), hashAlgorithm, encoding));
+				if (engine != null) {
+					final MessageDigestOutputStream digestStream = new MessageDigestOutputStream(engine);
+					try (final Writer writer = new BufferedWriter(new OutputStreamWriter(digestStream, UTF_8))) {
+						writeNode(node, writer, serialization);
+					}
+					metrics.addBytes(digestStream.getCount());
+					result = new StringValue(DigestEngines.encode(engine.digest(), encoding));
+				} else {
+					final StringWriter writer = new StringWriter();
+					writeNode(node, writer, serialization);
+					result = new StringValue(Hash.hashString(writer.toString(), hashAlgorithm, encoding));
+				}
+			} catch (CryptoException e) {
+				throw new EXpathCryptoException(this, e.getCryptoError());
+			} catch (IOException | SAXException e) {
+				throw new EXpathCryptoException(this, e);
+			}
+		} else if (inputType == Type.STRING) {
+			try {
+				if (engine != null) {
+					final byte[] data = args[0].getStringValue().getBytes(UTF_8);
+					metrics.addBytes(data.length);
+					result = new StringValue(DigestEngines.encode(engine.digest(data), encoding));
+				} else {
+					result = new StringValue(Hash.hashString(args[0].getStringValue(), hashAlgorithm, encoding));
+				}
 			} catch (CryptoException e) {
 				throw new EXpathCryptoException(this, e.getCryptoError());
 			}
@@ -88,7 +160,12 @@ public class HashFunction extends BasicFunction {
 			try {
 				final BinaryValue binaryValue = (BinaryValue) args[0].itemAt(0);
 				try (final InputStream is = binaryValue.getInputStream()) {
-					result = new StringValue(Hash.hashBinary(is, hashAlgorithm, encoding));
+					if (engine != null) {
+						metrics.addBytes(DigestEngines.update(engine, is));
+						result = new StringValue(DigestEngines.encode(engine.digest(), encoding));
+					} else {
+						result = new StringValue(Hash.hashBinary(is, hashAlgorithm, encoding));
+					}
 				}
 			} catch (CryptoException e) {
 				throw new EXpathCryptoException(this, e.getCryptoError());
@@ -101,4 +178,35 @@ public class HashFunction extends BasicFunction {
 
 		return result;
 	}
+
+	/**
+	 * Writes the node as a stream, either as its string value (the concatenation
+	 * of its descendant text nodes), or as its serialized markup.
+	 */
+	private void writeNode(final NodeValue node, final Writer writer, final boolean serialization)
+			throws SAXException {
+		final ContentHandler handler;
+		if (serialization) {
+			handler = new SAXSerializer(writer, SERIALIZATION_PROPERTIES);
+		} else {
+			handler = new DefaultHandler() {
+				@Override
+				public void characters(final char[] ch, final int start, final int length) throws SAXException {
+					try {
+						writer.write(ch, start, length);
+					} catch (final IOException e) {
+						throw new SAXException(e);
+					}
+				}
+
+				@Override
+				public void ignorableWhitespace(final char[] ch, final int start, final int length)
+						throws SAXException {
+					characters(ch, start, length);
+				}
+			};
+		}
+
+		node.toSAX(context.getBroker(), handler, SERIALIZATION_PROPERTIES);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,180 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digest;
+
+import static org.exist.xquery.FunctionDSL.arities;
+import static org.exist.xquery.FunctionDSL.arity;
+import static org.exist.xquery.FunctionDSL.param;
+import static org.exist.xquery.FunctionDSL.returns;
+import static org.expath.exist.crypto.ExistExpathCryptoModule.functionSignatures;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Optional;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.lock.Lock;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.ErrorCodes.ErrorCode;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+import org.expath.exist.crypto.EXpathCryptoException;
+import org.expath.exist.crypto.ExpathCryptoErrorCode;
+import org.expath.exist.crypto.metrics.CryptoMetrics;
+import org.expath.exist.crypto.metrics.FunctionMetrics;
+
+import ro.kuberam.libs.java.crypto.CryptoException;
+import ro.kuberam.libs.java.crypto.digest.Hash;
+
+/**
+ * Implements the crypto:hash-resource() function for eXist, which hashes a
+ * binary resource stored in the database directly from its backing file,
+ * without loading it into memory. The file is read into a direct buffer owned
+ * by the current thread, so that it is neither copied into the heap nor mapped
+ * into memory.
+ */
+public class HashResourceFunction extends BasicFunction {
+
+	private static final Logger LOG = LogManager.getLogger(HashResourceFunction.class);
+
+	public final static ErrorCode NO_BINARY_RESOURCE = new ExpathCryptoErrorCode("NO_BINARY_RESOURCE",
+			"The URI does not identify a binary resource stored in the database.");
+
+	/**
+	 * The size of the direct buffers the files are read into.
+	 */
+	private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> READ_BUFFERS = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
+	private static final String FS_HASH_RESOURCE_NAME = "hash-resource";
+	private static final FunctionParameterSequenceType FS_HASH_RESOURCE_PARAM_URI = param("uri", Type.ANY_URI,
+			"The database URI of the binary resource to be hashed.");
+	private static final FunctionParameterSequenceType FS_HASH_RESOURCE_PARAM_ALGORITHM = param("algorithm",
+			Type.STRING, "The cryptographic hashing algorithm.");
+
+	public static final FunctionSignature FS_HASH_RESOURCE[] = functionSignatures(FS_HASH_RESOURCE_NAME,
+			"Hashes a binary resource stored in the database, without loading it into memory.",
+			returns(Type.STRING, "resulting hash value, as string."),
+			arities(arity(FS_HASH_RESOURCE_PARAM_URI, FS_HASH_RESOURCE_PARAM_ALGORITHM),
+					arity(FS_HASH_RESOURCE_PARAM_URI, FS_HASH_RESOURCE_PARAM_ALGORITHM, param("encoding", Type.STRING,
+							"The encoding of the output. The legal values are \"hex\" and \"base64\". The default value is \"base64\"."))));
+
+	public HashResourceFunction(final XQueryContext context, final FunctionSignature signature) {
+		super(context, signature);
+	}
+
+	@Override
+	public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+		final FunctionMetrics metrics = CryptoMetrics.metrics(FS_HASH_RESOURCE_NAME,
+				DigestEngines.normaliseHashAlgorithm(args[1].getStringValue()));
+		final long startTime = System.nanoTime();
+		boolean failed = true;
+		try {
+			final Sequence result = hash(args, metrics);
+			failed = false;
+
+			return result;
+		} finally {
+			metrics.record(startTime, failed);
+		}
+	}
+
+	private Sequence hash(final Sequence[] args, final FunctionMetrics metrics) throws XPathException {
+		final String resourceUri = args[0].getStringValue();
+		final String hashAlgorithm = args[1].getStringValue();
+		final String encoding = Optional.ofNullable(args.length == 3 ? args[2].getStringValue() : null)
+				.filter(str -> !str.isEmpty()).orElse("base64");
+		LOG.debug("resourceUri = {}, encoding = {}", () -> resourceUri, () -> encoding);
+
+		DocumentImpl resource = null;
+		try {
+			DigestEngines.checkEncoding(encoding);
+
+			resource = context.getBroker().getXMLResource(XmldbURI.xmldbUriFor(resourceUri), Lock.LockMode.READ_LOCK);
+			if (resource == null || resource.getResourceType() != DocumentImpl.BINARY_FILE) {
+				throw new EXpathCryptoException(this, NO_BINARY_RESOURCE,
+						NO_BINARY_RESOURCE.getDescription() + " URI: " + resourceUri);
+			}
+
+			final Path file = context.getBroker().getBinaryFile((BinaryDocument) resource);
+
+			final MessageDigest engine = DigestEngines.messageDigest(hashAlgorithm);
+			if (engine == null) {
+				metrics.addBytes(Files.size(file));
+				try (final InputStream is = Files.newInputStream(file)) {
+					return new StringValue(Hash.hashBinary(is, hashAlgorithm, encoding));
+				}
+			}
+
+			return new StringValue(DigestEngines.encode(hash(engine, file, metrics), encoding));
+		} catch (final CryptoException e) {
+			throw new EXpathCryptoException(this, e.getCryptoError());
+		} catch (final URISyntaxException | PermissionDeniedException | IOException e) {
+			throw new EXpathCryptoException(this, e);
+		} finally {
+			if (resource != null) {
+				resource.getUpdateLock().release(Lock.LockMode.READ_LOCK);
+			}
+		}
+	}
+
+	private static byte[] hash(final MessageDigest engine, final Path file, final FunctionMetrics metrics)
+			throws IOException {
+		final ByteBuffer buffer = READ_BUFFERS.get();
+		try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			long position = 0;
+			while (position < size) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), size - position));
+				final int read = channel.read(buffer, position);
+				if (read < 0) {
+					throw new EOFException("The file was truncated while being hashed.");
+				}
+				buffer.flip();
+				engine.update(buffer);
+				position += read;
+			}
+			metrics.addBytes(size);
+		}
+
+		return engine.digest();
+	}
+}
@@ -28,8 +28,11 @@ import static org.expath.exist.crypto.ExistExpathCryptoModule.functionSignatures
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.InvalidKeyException;
 import java.util.Optional;
 
+import javax.crypto.Mac;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.xquery.BasicFunction;
@@ -41,6 +44,8 @@ import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.StringValue;
 import org.exist.xquery.value.Type;
 import org.expath.exist.crypto.EXpathCryptoException;
+import org.expath.exist.crypto.metrics.CryptoMetrics;
+import org.expath.exist.crypto.metrics.FunctionMetrics;
 import org.expath.exist.crypto.utils.Conversion;
 
 import com.evolvedbinary.j8fu.Either;
@@ -72,6 +77,21 @@ public class HmacFunction extends BasicFunction {
 
 	@Override
 	public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+		final FunctionMetrics metrics = CryptoMetrics.metrics(FS_HMAC_NAME,
+				DigestEngines.normaliseHmacAlgorithm(args[2].getStringValue()));
+		final long startTime = System.nanoTime();
+		boolean failed = true;
+		try {
+			final Sequence result = hmac(args, metrics);
+			failed = false;
+
+			return result;
+		} finally {
+			metrics.record(startTime, failed);
+		}
+	}
+
+	private Sequence hmac(final Sequence[] args, final FunctionMetrics metrics) throws XPathException {
 		final int argsLength = args.length;
 		LOG.debug("argsLength = {}", () -> argsLength);
 		LOG.debug("data item count = {}", () -> args[0].getItemCount());
@@ -88,13 +108,24 @@ public class HmacFunction extends BasicFunction {
 			final String algorithm = args[2].getStringValue();
 			LOG.debug("algorithm = {}", () -> algorithm);
 
+			final Mac engine = secretKey != null && secretKey.length > 0 ? HmacKeyCache.mac(algorithm, secretKey)
+					: null;
+
 			if (argsLength == 3) {
 				final byte[] resultBytes;
 				if (data.isLeft()) {
 					try (final InputStream is = data.left().get()) {
-						resultBytes = Hmac.hmac(is, secretKey, algorithm);
+						if (engine != null) {
+							metrics.addBytes(DigestEngines.update(engine, is));
+							resultBytes = engine.doFinal();
+						} else {
+							resultBytes = Hmac.hmac(is, secretKey, algorithm);
+						}
 					}
 					dataStreamClosed = true;
+				} else if (engine != null) {
+					metrics.addBytes(data.right().get().length);
+					resultBytes = engine.doFinal(data.right().get());
 				} else {
 					resultBytes = Hmac.hmac(data.right().get(), secretKey, algorithm);
 				}
@@ -105,13 +136,23 @@ public class HmacFunction extends BasicFunction {
 				final String encoding = Optional.ofNullable(args[3].getStringValue()).filter(str -> !str.isEmpty())
 						.orElse("base64");
 				LOG.debug("encoding = {}", () -> encoding);
+				DigestEngines.checkEncoding(encoding);
 
 				final String resultString;
 
 				if (data.isLeft()) {
 					try (final InputStream is = data.left().get()) {
-						resultString = Hmac.hmac(is, secretKey, algorithm, encoding);
+						if (engine != null) {
+							metrics.addBytes(DigestEngines.update(engine, is));
+							resultString = DigestEngines.encode(engine.doFinal(), encoding);
+						} else {
+							resultString = Hmac.hmac(is, secretKey, algorithm, encoding);
+						}
 					}
+					dataStreamClosed = true;
+				} else if (engine != null) {
+					metrics.addBytes(data.right().get().length);
+					resultString = DigestEngines.encode(engine.doFinal(data.right().get()), encoding);
 				} else {
 					resultString = Hmac.hmac(data.right().get(), secretKey, algorithm, encoding);
 				}
@@ -123,7 +164,7 @@ public class HmacFunction extends BasicFunction {
 			}
 		} catch (CryptoException e) {
 			throw new EXpathCryptoException(this, e.getCryptoError());
-		} catch (IOException e) {
+		} catch (IOException | InvalidKeyException e) {
 			throw new EXpathCryptoException(this, e);
 		} finally {
 			if (data != null && data.isLeft() && !dataStreamClosed) {
@@ -0,0 +1,143 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digest;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.expath.exist.crypto.utils.BoundedCache;
+
+/**
+ * Bounded LRU cache of {@link Mac} prototypes, already initialised with their
+ * secret key, keyed by a fingerprint of (algorithm, key bytes). A cache hit
+ * clones the prototype, instead of running the key schedule again.
+ */
+public final class HmacKeyCache {
+
+	public static final int DEFAULT_MAX_SIZE = 256;
+	public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(1);
+
+	private static final BoundedCache<Mac> PROTOTYPES = new BoundedCache<>(DEFAULT_MAX_SIZE, DEFAULT_TTL, false);
+
+	private HmacKeyCache() {
+	}
+
+	/**
+	 * Sets the maximum number of cached keys (0 disables the cache), and the time
+	 * to live of a cached key, in milliseconds (0 means no expiry).
+	 */
+	public static void configure(final int maxSize, final long ttl) {
+		PROTOTYPES.configure(maxSize, ttl);
+	}
+
+	/**
+	 * Gets a {@link Mac} initialised with the secret key, for use by the caller
+	 * until its next call on the current thread. When the cache is disabled, the
+	 * engine is the one owned by the current thread.
+	 *
+	 * @return the engine, or null if the algorithm is not known to the installed
+	 *         providers.
+	 */
+	@Nullable
+	public static Mac mac(final String algorithm, final byte[] secretKey) throws InvalidKeyException {
+		if (!PROTOTYPES.isEnabled()) {
+			return initialise(DigestEngines.mac(algorithm), secretKey);
+		}
+
+		final String fingerprint = fingerprint(algorithm, secretKey);
+		final Mac cached = PROTOTYPES.get(fingerprint);
+		if (cached != null) {
+			try {
+				return (Mac) cached.clone();
+			} catch (final CloneNotSupportedException e) {
+				// cannot happen, only cloneable prototypes are cached
+			}
+		}
+
+		final Mac prototype = initialise(DigestEngines.newMac(algorithm), secretKey);
+		if (prototype == null) {
+			return null;
+		}
+
+		try {
+			final Mac mac = (Mac) prototype.clone();
+			PROTOTYPES.put(fingerprint, prototype);
+			return mac;
+		} catch (final CloneNotSupportedException e) {
+			// the provider does not support cloning, so this key is not cached
+			return prototype;
+		}
+	}
+
+	/**
+	 * Gets a {@link Mac} initialised with the secret key, which is never shared
+	 * with the current thread, so that it can be kept by the caller, e.g. in a
+	 * {@link DigestHandle}.
+	 *
+	 * @return the engine, or null if the algorithm is not known to the installed
+	 *         providers.
+	 */
+	@Nullable
+	public static Mac newMac(final String algorithm, final byte[] secretKey) throws InvalidKeyException {
+		if (!PROTOTYPES.isEnabled()) {
+			return initialise(DigestEngines.newMac(algorithm), secretKey);
+		}
+
+		return mac(algorithm, secretKey);
+	}
+
+	public static long getHits() {
+		return PROTOTYPES.getHits();
+	}
+
+	public static long getMisses() {
+		return PROTOTYPES.getMisses();
+	}
+
+	public static int size() {
+		return PROTOTYPES.size();
+	}
+
+	public static void clear() {
+		PROTOTYPES.clear();
+	}
+
+	@Nullable
+	private static Mac initialise(@Nullable final Mac mac, final byte[] secretKey) throws InvalidKeyException {
+		if (mac != null) {
+			mac.init(new SecretKeySpec(secretKey, mac.getAlgorithm()));
+		}
+
+		return mac;
+	}
+
+	private static String fingerprint(final String algorithm, final byte[] secretKey) {
+		final MessageDigest sha256 = DigestEngines.messageDigest("SHA-256");
+
+		return DigestEngines.normaliseHmacAlgorithm(algorithm) + "/"
+				+ Base64.getEncoder().encodeToString(sha256.digest(secretKey));
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digest;
+
+import static org.exist.xquery.FunctionDSL.arities;
+import static org.exist.xquery.FunctionDSL.arity;
+import static org.exist.xquery.FunctionDSL.optManyParam;
+import static org.exist.xquery.FunctionDSL.param;
+import static org.exist.xquery.FunctionDSL.returns;
+import static org.expath.exist.crypto.ExistExpathCryptoModule.functionSignature;
+import static org.expath.exist.crypto.ExistExpathCryptoModule.functionSignatures;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.util.Optional;
+
+import javax.crypto.Mac;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.ErrorCodes.ErrorCode;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+import org.expath.exist.crypto.EXpathCryptoException;
+import org.expath.exist.crypto.ExistExpathCryptoModule;
+import org.expath.exist.crypto.ExpathCryptoErrorCode;
+import org.expath.exist.crypto.utils.Conversion;
+
+import com.evolvedbinary.j8fu.Either;
+
+import ro.kuberam.libs.java.crypto.CryptoException;
+
+/**
+ * Implements the incremental hashing functions for eXist, crypto:hash-init(),
+ * crypto:hmac-init(), crypto:hash-update(), crypto:hash-clone() and
+ * crypto:hash-final(), so that data received in chunks, in separate calls, is
+ * hashed, or authenticated, without being reassembled. The midstream states
+ * are kept in the {@link DigestHandles} registry, and can only be used by the
+ * user who created them.
+ */
+public class IncrementalHashFunctions extends BasicFunction {
+
+	public final static ErrorCode NO_HASH_HANDLE = new ExpathCryptoErrorCode("NO_HASH_HANDLE",
+			"The hash handle is unknown, expired, or already completed.");
+
+	private static final String FS_HASH_INIT_NAME = "hash-init";
+	private static final String FS_HMAC_INIT_NAME = "hmac-init";
+	private static final String FS_HASH_UPDATE_NAME = "hash-update";
+	private static final String FS_HASH_CLONE_NAME = "hash-clone";
+	private static final String FS_HASH_FINAL_NAME = "hash-final";
+
+	private static final FunctionParameterSequenceType FS_PARAM_ALGORITHM = param("algorithm", Type.STRING,
+			"The cryptographic hashing algorithm.");
+	private static final FunctionParameterSequenceType FS_PARAM_HANDLE = param("handle", Type.STRING,
+			"The handle of the computation, as returned by crypto:hash-init() or crypto:hmac-init().");
+
+	public final static FunctionSignature FS_HASH_INIT = functionSignature(FS_HASH_INIT_NAME,
+			"Starts an incremental hash computation.", returns(Type.STRING, "the handle of the computation."),
+			FS_PARAM_ALGORITHM);
+
+	public final static FunctionSignature FS_HMAC_INIT = functionSignature(FS_HMAC_INIT_NAME,
+			"Starts an incremental HMAC computation.", returns(Type.STRING, "the handle of the computation."),
+			optManyParam("key", Type.ATOMIC,
+					"The secret key used for calculating the authentication code. This parameter can be of type xs:string, xs:byte*, xs:base64Binary, or xs:hexBinary."),
+			FS_PARAM_ALGORITHM);
+
+	public final static FunctionSignature FS_HASH_UPDATE = functionSignature(FS_HASH_UPDATE_NAME,
+			"Feeds a chunk of data into an incremental hash, or HMAC, computation.",
+			returns(Type.STRING, "the handle of the computation."), FS_PARAM_HANDLE,
+			optManyParam("data", Type.ATOMIC,
+					"The chunk of data. This parameter can be of type xs:string, xs:byte*, xs:base64Binary, or xs:hexBinary."));
+
+	public final static FunctionSignature FS_HASH_CLONE = functionSignature(FS_HASH_CLONE_NAME,
+			"Copies the midstream state of an incremental hash, or HMAC, computation, which can then be continued independently.",
+			returns(Type.STRING, "the handle of the copy."), FS_PARAM_HANDLE);
+
+	public final static FunctionSignature FS_HASH_FINAL[] = functionSignatures(FS_HASH_FINAL_NAME,
+			"Completes an incremental hash, or HMAC, computation, whose handle is then discarded.",
+			returns(Type.STRING, "the hash, or the authentication code."),
+			arities(arity(FS_PARAM_HANDLE), arity(FS_PARAM_HANDLE, param("encoding", Type.STRING,
+					"The encoding of the output. The legal values are \"hex\" and \"base64\". The default value is \"base64\"."))));
+
+	public IncrementalHashFunctions(final XQueryContext context, final FunctionSignature signature) {
+		super(context, signature);
+	}
+
+	@Override
+	public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+		try {
+			switch (getName().getLocalPart()) {
+			case FS_HASH_INIT_NAME:
+				return new StringValue(DigestHandles.register(hashInit(args[0].getStringValue())));
+
+			case FS_HMAC_INIT_NAME:
+				final byte[] secretKey = Conversion.toByteArray(Conversion.sequence2javaTypes(args[0]));
+
+				return new StringValue(DigestHandles.register(hmacInit(secretKey, args[1].getStringValue())));
+
+			case FS_HASH_UPDATE_NAME:
+				return update(args[0].getStringValue(), args[1]);
+
+			case FS_HASH_CLONE_NAME:
+				final DigestHandle copy = handle(args[0].getStringValue()).copy();
+				if (copy == null) {
+					throw noHashHandle(args[0].getStringValue());
+				}
+
+				return new StringValue(DigestHandles.register(copy));
+
+			case FS_HASH_FINAL_NAME:
+				final String id = args[0].getStringValue();
+				final String encoding = Optional.ofNullable(args.length == 2 ? args[1].getStringValue() : null)
+						.filter(str -> !str.isEmpty()).orElse("base64");
+
+				DigestEngines.checkEncoding(encoding);
+
+				final byte[] result = handle(id).complete();
+				DigestHandles.remove(id);
+				if (result == null) {
+					throw noHashHandle(id);
+				}
+
+				return new StringValue(DigestEngines.encode(result, encoding));
+
+			default:
+				throw new EXpathCryptoException(this, ExistExpathCryptoModule.NO_FUNCTION,
+						"No function: " + getName() + "#" + getSignature().getArgumentCount());
+			}
+		} catch (final CryptoException e) {
+			throw new EXpathCryptoException(this, e.getCryptoError());
+		} catch (final IOException | InvalidKeyException | CloneNotSupportedException e) {
+			throw new EXpathCryptoException(this, e);
+		}
+	}
+
+	private DigestHandle hashInit(final String algorithm) throws CryptoException {
+		final MessageDigest engine = DigestEngines.newMessageDigest(algorithm);
+		if (engine == null) {
+			throw DigestEngines.unknownAlgorithm(algorithm);
+		}
+
+		return DigestHandle.of(algorithm, owner(), engine);
+	}
+
+	private DigestHandle hmacInit(final byte[] secretKey, final String algorithm)
+			throws CryptoException, InvalidKeyException {
+		if (secretKey == null || secretKey.length == 0) {
+			throw new InvalidKeyException("The secret key must not be empty.");
+		}
+
+		// the handle outlives this call, so it needs an engine of its own
+		final Mac engine = HmacKeyCache.newMac(algorithm, secretKey);
+		if (engine == null) {
+			throw DigestEngines.unknownAlgorithm(algorithm);
+		}
+
+		return DigestHandle.of(algorithm, owner(), engine);
+	}
+
+	private Sequence update(final String id, final Sequence chunk) throws XPathException, IOException {
+		final DigestHandle handle = handle(id);
+
+		final Either<InputStream, byte[]> data = Conversion.sequence2javaTypes(chunk);
+		if (data == null) {
+			throw new XPathException(this, ErrorCodes.XPTY0004,
+					"The data must be of type xs:string, xs:byte*, xs:base64Binary, or xs:hexBinary.");
+		}
+
+		final boolean updated;
+		if (data.isLeft()) {
+			try (final InputStream is = data.left().get()) {
+				updated = handle.update(is);
+			}
+		} else {
+			updated = handle.update(data.right().get());
+		}
+
+		if (!updated) {
+			throw noHashHandle(id);
+		}
+
+		return new StringValue(id);
+	}
+
+	private DigestHandle handle(final String id) throws XPathException {
+		final DigestHandle handle = DigestHandles.get(id, owner());
+		if (handle == null) {
+			throw noHashHandle(id);
+		}
+
+		return handle;
+	}
+
+	private EXpathCryptoException noHashHandle(final String id) {
+		return new EXpathCryptoException(this, NO_HASH_HANDLE, NO_HASH_HANDLE.getDescription() + " Handle: " + id);
+	}
+
+	private String owner() {
+		return context.getBroker().getCurrentSubject().getName();
+	}
+}
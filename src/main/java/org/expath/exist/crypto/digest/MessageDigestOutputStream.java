@@ -0,0 +1,56 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digest;
+
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Feeds everything written to it into a {@link MessageDigest}, and discards
+ * it, so that data produced as a stream can be hashed in constant memory.
+ */
+public class MessageDigestOutputStream extends OutputStream {
+
+	private final MessageDigest engine;
+	private long count = 0;
+
+	public MessageDigestOutputStream(final MessageDigest engine) {
+		this.engine = engine;
+	}
+
+	@Override
+	public void write(final int b) {
+		engine.update((byte) b);
+		count++;
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) {
+		engine.update(b, off, len);
+		count += len;
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+}
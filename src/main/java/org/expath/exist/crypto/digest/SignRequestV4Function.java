@@ -0,0 +1,214 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digest;
+
+import static org.exist.xquery.FunctionDSL.arities;
+import static org.exist.xquery.FunctionDSL.arity;
+import static org.exist.xquery.FunctionDSL.optManyParam;
+import static org.exist.xquery.FunctionDSL.optParam;
+import static org.exist.xquery.FunctionDSL.param;
+import static org.exist.xquery.FunctionDSL.returns;
+import static org.expath.exist.crypto.ExistExpathCryptoModule.functionSignatures;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.ErrorCodes.ErrorCode;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.AbstractMapType;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.AtomicValue;
+import org.exist.xquery.value.DateTimeValue;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+import org.expath.exist.crypto.EXpathCryptoException;
+import org.expath.exist.crypto.ExpathCryptoErrorCode;
+import org.expath.exist.crypto.metrics.CryptoMetrics;
+import org.expath.exist.crypto.metrics.FunctionMetrics;
+import org.expath.exist.crypto.utils.Conversion;
+
+import com.evolvedbinary.j8fu.Either;
+
+/**
+ * Implements the crypto:sign-request-v4() function for eXist, which signs an
+ * HTTP request with AWS Signature Version 4 in one call, instead of chaining
+ * crypto:hmac() calls to derive the signing key. The payload is hashed as a
+ * stream, and the signing keys are cached by the {@link SigningKeyCache}.
+ */
+public class SignRequestV4Function extends BasicFunction {
+
+	public final static ErrorCode INVALID_REQUEST = new ExpathCryptoErrorCode("INVALID_REQUEST",
+			"The URL of the request must be absolute, or a host header must be given.");
+
+	private static final String FS_SIGN_REQUEST_V4_NAME = "sign-request-v4";
+	private static final FunctionParameterSequenceType FS_SIGN_REQUEST_V4_PARAM_METHOD = param("method",
+			Type.STRING, "The HTTP method of the request, e.g. \"GET\".");
+	private static final FunctionParameterSequenceType FS_SIGN_REQUEST_V4_PARAM_URL = param("url", Type.STRING,
+			"The URL of the request, whose path and query are percent-encoded as they are sent.");
+	private static final FunctionParameterSequenceType FS_SIGN_REQUEST_V4_PARAM_HEADERS = optParam("headers",
+			Type.MAP,
+			"The headers to be signed, as a map from their names to their values, a sequence of values being joined with commas. The host header is taken from the URL when it is missing. A x-amz-content-sha256 header, e.g. with the value \"UNSIGNED-PAYLOAD\", is signed instead of the hash of the payload.");
+	private static final FunctionParameterSequenceType FS_SIGN_REQUEST_V4_PARAM_PAYLOAD = optManyParam("payload",
+			Type.ATOMIC,
+			"The payload of the request, which is hashed as a stream. This parameter can be of type xs:string, xs:byte*, xs:base64Binary, or xs:hexBinary.");
+	private static final FunctionParameterSequenceType FS_SIGN_REQUEST_V4_PARAM_ACCESS_KEY = param("access-key",
+			Type.STRING, "The access key ID.");
+	private static final FunctionParameterSequenceType FS_SIGN_REQUEST_V4_PARAM_SECRET_KEY = param("secret-key",
+			Type.STRING, "The secret access key.");
+	private static final FunctionParameterSequenceType FS_SIGN_REQUEST_V4_PARAM_REGION = param("region",
+			Type.STRING, "The region of the service, e.g. \"us-east-1\".");
+	private static final FunctionParameterSequenceType FS_SIGN_REQUEST_V4_PARAM_SERVICE = param("service",
+			Type.STRING, "The name of the service, e.g. \"s3\".");
+
+	public static final FunctionSignature FS_SIGN_REQUEST_V4[] = functionSignatures(FS_SIGN_REQUEST_V4_NAME,
+			"Signs an HTTP request with AWS Signature Version 4, i.e. builds its canonical request, hashes its payload, and signs them with the signing key derived from the secret key for the date, region and service.",
+			returns(Type.MAP,
+					"a map with the headers to be added to the request, under the keys 'authorization', 'x-amz-date', and, if signed, 'x-amz-content-sha256', as well as the names of the signed headers under the key 'signed-headers', and the signature under the key 'signature'."),
+			arities(arity(FS_SIGN_REQUEST_V4_PARAM_METHOD, FS_SIGN_REQUEST_V4_PARAM_URL,
+					FS_SIGN_REQUEST_V4_PARAM_HEADERS, FS_SIGN_REQUEST_V4_PARAM_PAYLOAD,
+					FS_SIGN_REQUEST_V4_PARAM_ACCESS_KEY, FS_SIGN_REQUEST_V4_PARAM_SECRET_KEY,
+					FS_SIGN_REQUEST_V4_PARAM_REGION, FS_SIGN_REQUEST_V4_PARAM_SERVICE),
+					arity(FS_SIGN_REQUEST_V4_PARAM_METHOD, FS_SIGN_REQUEST_V4_PARAM_URL,
+							FS_SIGN_REQUEST_V4_PARAM_HEADERS, FS_SIGN_REQUEST_V4_PARAM_PAYLOAD,
+							FS_SIGN_REQUEST_V4_PARAM_ACCESS_KEY, FS_SIGN_REQUEST_V4_PARAM_SECRET_KEY,
+							FS_SIGN_REQUEST_V4_PARAM_REGION, FS_SIGN_REQUEST_V4_PARAM_SERVICE,
+							optParam("timestamp", Type.DATE_TIME,
+									"The time of the request. The default value is the current time."))));
+
+	public SignRequestV4Function(final XQueryContext context, final FunctionSignature signature) {
+		super(context, signature);
+	}
+
+	@Override
+	public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+		final FunctionMetrics metrics = CryptoMetrics.metrics(FS_SIGN_REQUEST_V4_NAME, SignatureV4.ALGORITHM);
+		final long startTime = System.nanoTime();
+		boolean failed = true;
+		try {
+			final Sequence result = sign(args, metrics);
+			failed = false;
+
+			return result;
+		} finally {
+			metrics.record(startTime, failed);
+		}
+	}
+
+	private Sequence sign(final Sequence[] args, final FunctionMetrics metrics) throws XPathException {
+		try {
+			final URI url = new URI(args[1].getStringValue());
+			final Map<String, List<String>> headers = headers(args[2]);
+			if (url.getHost() == null
+					&& headers.keySet().stream().noneMatch(name -> SignatureV4.HOST.equalsIgnoreCase(name.trim()))) {
+				throw new EXpathCryptoException(this, INVALID_REQUEST, INVALID_REQUEST.getDescription());
+			}
+
+			final boolean payloadHashGiven = headers.keySet().stream()
+					.anyMatch(name -> SignatureV4.X_AMZ_CONTENT_SHA256.equalsIgnoreCase(name.trim()));
+			// the given x-amz-content-sha256 header is signed instead of the hash
+			final String payloadHash = payloadHashGiven ? SignatureV4.UNSIGNED_PAYLOAD
+					: payloadHash(args[3], metrics);
+
+			final Instant timestamp = args.length == 9 && !args[8].isEmpty()
+					? ((DateTimeValue) args[8].itemAt(0)).getDate().toInstant()
+					: Instant.now();
+
+			final SignatureV4 signature = SignatureV4.sign(args[0].getStringValue(), url, headers, payloadHash,
+					args[4].getStringValue(), args[5].getStringValue(), args[6].getStringValue(),
+					args[7].getStringValue(), timestamp);
+
+			final MapType result = new MapType(context);
+			result.add(new StringValue("authorization"), new StringValue(signature.getAuthorization()));
+			result.add(new StringValue(SignatureV4.X_AMZ_DATE), new StringValue(signature.getAmzDate()));
+			if (signature.getContentSha256() != null) {
+				result.add(new StringValue(SignatureV4.X_AMZ_CONTENT_SHA256),
+						new StringValue(signature.getContentSha256()));
+			}
+			result.add(new StringValue("signed-headers"), new StringValue(signature.getSignedHeaders()));
+			result.add(new StringValue("signature"), new StringValue(signature.getSignature()));
+
+			return result;
+		} catch (final URISyntaxException | IOException | InvalidKeyException e) {
+			throw new EXpathCryptoException(this, e);
+		}
+	}
+
+	private Map<String, List<String>> headers(final Sequence headersArg) throws XPathException {
+		final Map<String, List<String>> headers = new LinkedHashMap<>();
+		if (headersArg.isEmpty()) {
+			return headers;
+		}
+
+		final AbstractMapType map = (AbstractMapType) headersArg.itemAt(0);
+		for (final SequenceIterator names = map.keys().iterate(); names.hasNext();) {
+			final AtomicValue name = (AtomicValue) names.nextItem();
+			final Sequence values = map.get(name);
+
+			final List<String> headerValues = new ArrayList<>(values.getItemCount());
+			for (final SequenceIterator i = values.iterate(); i.hasNext();) {
+				headerValues.add(i.nextItem().getStringValue());
+			}
+			headers.put(name.getStringValue(), headerValues);
+		}
+
+		return headers;
+	}
+
+	private String payloadHash(final Sequence payloadArg, final FunctionMetrics metrics)
+			throws XPathException, IOException {
+		final MessageDigest sha256 = DigestEngines.messageDigest("SHA-256");
+		if (payloadArg.isEmpty()) {
+			return DigestEngines.hex(sha256.digest());
+		}
+
+		final Either<InputStream, byte[]> payload = Conversion.sequence2javaTypes(payloadArg);
+		if (payload == null) {
+			throw new XPathException(this, ErrorCodes.XPTY0004,
+					"The payload must be of type xs:string, xs:byte*, xs:base64Binary, or xs:hexBinary.");
+		}
+
+		if (payload.isLeft()) {
+			try (final InputStream is = payload.left().get()) {
+				metrics.addBytes(DigestEngines.update(sha256, is));
+			}
+		} else {
+			metrics.addBytes(payload.right().get().length);
+			sha256.update(payload.right().get());
+		}
+
+		return DigestEngines.hex(sha256.digest());
+	}
+}
@@ -0,0 +1,289 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digest;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Signs HTTP requests with AWS Signature Version 4: builds the canonical
+ * request, the string to sign, and its signature with the signing key of the
+ * scope, taken from the {@link SigningKeyCache}.
+ *
+ * The path of the URL is taken as sent on the wire, i.e. already
+ * percent-encoded. It is encoded once more for all the services but "s3", as
+ * required by the specification.
+ */
+public final class SignatureV4 {
+
+	public static final String ALGORITHM = "AWS4-HMAC-SHA256";
+	public static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+
+	public static final String HOST = "host";
+	public static final String X_AMZ_DATE = "x-amz-date";
+	public static final String X_AMZ_CONTENT_SHA256 = "x-amz-content-sha256";
+
+	private static final String S3 = "s3";
+	private static final String TERMINATOR = "aws4_request";
+	private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+			.withZone(ZoneOffset.UTC);
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private final String authorization;
+	private final String amzDate;
+	@Nullable
+	private final String contentSha256;
+	private final String signedHeaders;
+	private final String signature;
+
+	private SignatureV4(final String authorization, final String amzDate, @Nullable final String contentSha256,
+			final String signedHeaders, final String signature) {
+		this.authorization = authorization;
+		this.amzDate = amzDate;
+		this.contentSha256 = contentSha256;
+		this.signedHeaders = signedHeaders;
+		this.signature = signature;
+	}
+
+	/**
+	 * Signs a request.
+	 *
+	 * @param headers       the headers to be signed, by name, in any case; the
+	 *                      host header is added from the URL when missing
+	 * @param payloadHash   the lowercase hex SHA-256 hash of the payload, or
+	 *                      {@value #UNSIGNED_PAYLOAD}; it is ignored when the
+	 *                      headers have a x-amz-content-sha256 header, whose value
+	 *                      is signed instead
+	 * @param timestamp     the time of the request, whose date is the date of the
+	 *                      scope
+	 */
+	public static SignatureV4 sign(final String method, final URI url, final Map<String, List<String>> headers,
+			final String payloadHash, final String accessKey, final String secretKey, final String region,
+			final String service, final Instant timestamp) throws InvalidKeyException {
+		final String amzDate = AMZ_DATE.format(timestamp);
+		final String date = amzDate.substring(0, 8);
+		final boolean s3 = S3.equals(service);
+
+		final SortedMap<String, String> canonicalHeaders = new TreeMap<>();
+		for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+			final List<String> values = new ArrayList<>(header.getValue().size());
+			for (final String value : header.getValue()) {
+				values.add(value.trim().replaceAll("\\s+", " "));
+			}
+			canonicalHeaders.merge(header.getKey().trim().toLowerCase(Locale.ROOT), String.join(",", values),
+					(first, second) -> first + "," + second);
+		}
+		if (!canonicalHeaders.containsKey(HOST)) {
+			canonicalHeaders.put(HOST, host(url));
+		}
+		canonicalHeaders.put(X_AMZ_DATE, amzDate);
+
+		String contentSha256 = canonicalHeaders.get(X_AMZ_CONTENT_SHA256);
+		if (contentSha256 == null && s3) {
+			contentSha256 = payloadHash;
+			canonicalHeaders.put(X_AMZ_CONTENT_SHA256, contentSha256);
+		}
+
+		final StringBuilder canonicalRequest = new StringBuilder(256);
+		canonicalRequest.append(method.toUpperCase(Locale.ROOT)).append('\n');
+		canonicalRequest.append(canonicalPath(url, s3)).append('\n');
+		canonicalRequest.append(canonicalQuery(url.getRawQuery())).append('\n');
+		for (final Map.Entry<String, String> header : canonicalHeaders.entrySet()) {
+			canonicalRequest.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+		}
+		final String signedHeaders = String.join(";", canonicalHeaders.keySet());
+		canonicalRequest.append('\n').append(signedHeaders).append('\n');
+		canonicalRequest.append(contentSha256 != null ? contentSha256 : payloadHash);
+
+		final String scope = date + "/" + region + "/" + service + "/" + TERMINATOR;
+		final MessageDigest sha256 = DigestEngines.messageDigest("SHA-256");
+		final String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n"
+				+ DigestEngines.hex(sha256.digest(canonicalRequest.toString().getBytes(StandardCharsets.UTF_8)));
+
+		final String signature = DigestEngines.hex(SigningKeyCache.mac(secretKey, date, region, service)
+				.doFinal(stringToSign.getBytes(StandardCharsets.UTF_8)));
+		final String authorization = ALGORITHM + " Credential=" + accessKey + "/" + scope + ", SignedHeaders="
+				+ signedHeaders + ", Signature=" + signature;
+
+		return new SignatureV4(authorization, amzDate, contentSha256, signedHeaders, signature);
+	}
+
+	/**
+	 * The value of the Authorization header.
+	 */
+	public String getAuthorization() {
+		return authorization;
+	}
+
+	/**
+	 * The value of the x-amz-date header, which is signed.
+	 */
+	public String getAmzDate() {
+		return amzDate;
+	}
+
+	/**
+	 * The value of the x-amz-content-sha256 header, if it is signed.
+	 */
+	@Nullable
+	public String getContentSha256() {
+		return contentSha256;
+	}
+
+	/**
+	 * The names of the signed headers, separated by semicolons.
+	 */
+	public String getSignedHeaders() {
+		return signedHeaders;
+	}
+
+	/**
+	 * The signature, as lowercase hex string.
+	 */
+	public String getSignature() {
+		return signature;
+	}
+
+	private static String host(final URI url) {
+		final int port = url.getPort();
+		if (port == -1 || ("http".equalsIgnoreCase(url.getScheme()) && port == 80)
+				|| ("https".equalsIgnoreCase(url.getScheme()) && port == 443)) {
+			return url.getHost();
+		}
+
+		return url.getHost() + ":" + port;
+	}
+
+	private static String canonicalPath(final URI url, final boolean s3) {
+		final String path = s3 ? url.getRawPath() : url.normalize().getRawPath();
+		if (path == null || path.isEmpty()) {
+			return "/";
+		}
+
+		final StringBuilder canonicalPath = new StringBuilder(path.length() + 16);
+		final String[] segments = path.split("/", -1);
+		for (int i = 0; i < segments.length; i++) {
+			if (i > 0) {
+				canonicalPath.append('/');
+			}
+			final String encoded = encode(decode(segments[i]));
+			canonicalPath.append(s3 ? encoded : encode(encoded));
+		}
+
+		return canonicalPath.toString();
+	}
+
+	private static String canonicalQuery(@Nullable final String query) {
+		if (query == null || query.isEmpty()) {
+			return "";
+		}
+
+		final List<String[]> parameters = new ArrayList<>();
+		for (final String parameter : query.split("&")) {
+			if (parameter.isEmpty()) {
+				continue;
+			}
+			final int separator = parameter.indexOf('=');
+			final String name = separator == -1 ? parameter : parameter.substring(0, separator);
+			final String value = separator == -1 ? "" : parameter.substring(separator + 1);
+			parameters.add(new String[] { encode(decode(name)), encode(decode(value)) });
+		}
+		parameters.sort((first, second) -> {
+			final int byName = first[0].compareTo(second[0]);
+			return byName != 0 ? byName : first[1].compareTo(second[1]);
+		});
+
+		final StringBuilder canonicalQuery = new StringBuilder(query.length() + 16);
+		for (final String[] parameter : parameters) {
+			if (canonicalQuery.length() > 0) {
+				canonicalQuery.append('&');
+			}
+			canonicalQuery.append(parameter[0]).append('=').append(parameter[1]);
+		}
+
+		return canonicalQuery.toString();
+	}
+
+	/**
+	 * Percent-encodes all the bytes of the UTF-8 encoding of the string but the
+	 * unreserved characters of RFC 3986.
+	 */
+	private static String encode(final String value) {
+		final StringBuilder encoded = new StringBuilder(value.length() + 16);
+		for (final byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			final char c = (char) (b & 0xFF);
+			if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_'
+					|| c == '.' || c == '~') {
+				encoded.append(c);
+			} else {
+				encoded.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+			}
+		}
+
+		return encoded.toString();
+	}
+
+	/**
+	 * Decodes the percent-encoded bytes of the string, leaving '+' as it is.
+	 */
+	private static String decode(final String value) {
+		if (value.indexOf('%') == -1) {
+			return value;
+		}
+
+		final ByteArrayOutputStream decoded = new ByteArrayOutputStream(value.length());
+		int i = 0;
+		while (i < value.length()) {
+			final int next = value.indexOf('%', i);
+			final int end = next == -1 ? value.length() : next;
+			final byte[] bytes = value.substring(i, end).getBytes(StandardCharsets.UTF_8);
+			decoded.write(bytes, 0, bytes.length);
+			if (next == -1) {
+				break;
+			}
+
+			final int high = next + 2 < value.length() ? Character.digit(value.charAt(next + 1), 16) : -1;
+			final int low = high != -1 ? Character.digit(value.charAt(next + 2), 16) : -1;
+			if (low == -1) {
+				decoded.write('%');
+				i = next + 1;
+			} else {
+				decoded.write(high << 4 | low);
+				i = next + 3;
+			}
+		}
+
+		return new String(decoded.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digest;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.expath.exist.crypto.utils.BoundedCache;
+
+/**
+ * Bounded LRU cache of the signing keys of AWS Signature Version 4, keyed by a
+ * fingerprint of (secret key, date, region, service). The key is derived from
+ * the secret key by a chain of four HMAC-SHA-256 computations, and cached as a
+ * {@link Mac} prototype already initialised with it, which a cache hit clones.
+ *
+ * A signing key is only valid for the date of its scope, so it is kept until
+ * that day rolls over, in UTC.
+ */
+public final class SigningKeyCache {
+
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	static final String HMAC_ALGORITHM = "HMAC-SHA-256";
+
+	private static final BoundedCache<Mac> PROTOTYPES = new BoundedCache<>(DEFAULT_MAX_SIZE, 0, false);
+
+	private SigningKeyCache() {
+	}
+
+	/**
+	 * Sets the maximum number of cached signing keys (0 disables the cache).
+	 */
+	public static void configure(final int maxSize) {
+		PROTOTYPES.configure(maxSize, 0);
+	}
+
+	/**
+	 * Gets a {@link Mac} initialised with the signing key of the scope, for
+	 * exclusive use by the caller.
+	 *
+	 * @param date the date of the scope, as yyyyMMdd
+	 */
+	public static Mac mac(final String secretKey, final String date, final String region, final String service)
+			throws InvalidKeyException {
+		if (!PROTOTYPES.isEnabled()) {
+			return initialise(DigestEngines.mac(HMAC_ALGORITHM), secretKey, date, region, service);
+		}
+
+		final String fingerprint = fingerprint(secretKey, date, region, service);
+		final Mac cached = PROTOTYPES.get(fingerprint);
+		if (cached != null) {
+			try {
+				return (Mac) cached.clone();
+			} catch (final CloneNotSupportedException e) {
+				// cannot happen, only cloneable prototypes are cached
+			}
+		}
+
+		final Mac prototype = initialise(DigestEngines.newMac(HMAC_ALGORITHM), secretKey, date, region, service);
+		final long expires = LocalDate.parse(date, DateTimeFormatter.BASIC_ISO_DATE).plusDays(1)
+				.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+		if (System.currentTimeMillis() >= expires) {
+			// a scope of a past day, signed once
+			return prototype;
+		}
+
+		try {
+			final Mac mac = (Mac) prototype.clone();
+			PROTOTYPES.put(fingerprint, prototype, expires);
+			return mac;
+		} catch (final CloneNotSupportedException e) {
+			// the provider does not support cloning, so this key is not cached
+			return prototype;
+		}
+	}
+
+	public static long getHits() {
+		return PROTOTYPES.getHits();
+	}
+
+	public static long getMisses() {
+		return PROTOTYPES.getMisses();
+	}
+
+	public static int size() {
+		return PROTOTYPES.size();
+	}
+
+	public static void clear() {
+		PROTOTYPES.clear();
+	}
+
+	private static Mac initialise(final Mac mac, final String secretKey, final String date, final String region,
+			final String service) throws InvalidKeyException {
+		final Mac derivation = DigestEngines.mac(HMAC_ALGORITHM);
+
+		byte[] key = ("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8);
+		for (final String part : new String[] { date, region, service, "aws4_request" }) {
+			derivation.init(new SecretKeySpec(key, derivation.getAlgorithm()));
+			key = derivation.doFinal(part.getBytes(StandardCharsets.UTF_8));
+		}
+		mac.init(new SecretKeySpec(key, mac.getAlgorithm()));
+
+		return mac;
+	}
+
+	private static String fingerprint(final String secretKey, final String date, final String region,
+			final String service) {
+		final MessageDigest sha256 = DigestEngines.messageDigest("SHA-256");
+
+		return Base64.getEncoder().encodeToString(sha256.digest(secretKey.getBytes(StandardCharsets.UTF_8))) + "/"
+				+ date + "/" + region + "/" + service;
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.expath.exist.crypto.ModuleProperties;
+import org.expath.exist.crypto.utils.WorkerPool;
+
+/**
+ * Computes tree hashes: the data is split into leaves of a fixed size, which
+ * are hashed in parallel, and the hashes of each level are then hashed by
+ * pairs, an odd hash being carried over to the next level as is, up to the
+ * root. With SHA-256 and 1 MB leaves, this is the tree hash of Amazon Glacier.
+ *
+ * Data stored in a file is hashed by runs of leaves, which are read
+ * concurrently, at their positions, with at most twice as many runs as the
+ * parallelism level pending. Streamed data is read sequentially, with at most
+ * twice as many leaves as the parallelism level held in memory.
+ */
+public final class TreeHash {
+
+	public static final int DEFAULT_LEAF_SIZE = 1024 * 1024;
+	public static final int DEFAULT_PARALLELISM = WorkerPool.DEFAULT_PARALLELISM;
+
+	// the minimum number of bytes hashed by one task, whatever the size of the leaves
+	private static final long MIN_TASK_SIZE = 1024 * 1024;
+
+	private static final WorkerPool POOL = new WorkerPool();
+
+	private TreeHash() {
+	}
+
+	/**
+	 * Sets the number of leaves hashed concurrently, across all queries.
+	 */
+	public static void configure(final int parallelism) {
+		POOL.configure(parallelism);
+	}
+
+	/**
+	 * Hashes the leaves of a file.
+	 *
+	 * @return the hashes of the leaves, in order; the data of an empty file is a
+	 *         single empty leaf
+	 */
+	public static List<byte[]> leaves(final FileChannel channel, final String algorithm, final int leafSize)
+			throws IOException, GeneralSecurityException {
+		checkAlgorithm(algorithm);
+
+		final long size = channel.size();
+		final long leafCount = size == 0 ? 1 : (size + leafSize - 1) / leafSize;
+		final long leavesPerTask = Math.max(1, MIN_TASK_SIZE / leafSize);
+		final ForkJoinPool pool = POOL.pool();
+		final int maxInFlight = WorkerPool.maxInFlight(pool);
+		final Deque<Future<List<byte[]>>> inFlight = new ArrayDeque<>();
+		final List<byte[]> hashes = new ArrayList<>();
+		try {
+			for (long leaf = 0; leaf < leafCount; leaf += leavesPerTask) {
+				final long firstLeaf = leaf;
+				final long lastLeaf = Math.min(leafCount, leaf + leavesPerTask);
+				inFlight.add(pool.submit(() -> hashLeaves(channel, algorithm, leafSize, size, firstLeaf, lastLeaf)));
+				if (inFlight.size() >= maxInFlight) {
+					hashes.addAll(WorkerPool.await(inFlight.poll()));
+				}
+			}
+
+			while (!inFlight.isEmpty()) {
+				hashes.addAll(WorkerPool.await(inFlight.poll()));
+			}
+
+			return hashes;
+		} finally {
+			for (final Future<List<byte[]>> leaves : inFlight) {
+				leaves.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Hashes the leaves of streamed data.
+	 *
+	 * @return the hashes of the leaves, in order; empty data is a single empty
+	 *         leaf
+	 */
+	public static List<byte[]> leaves(final InputStream is, final String algorithm, final int leafSize)
+			throws IOException, GeneralSecurityException {
+		checkAlgorithm(algorithm);
+
+		final ForkJoinPool pool = POOL.pool();
+		final int maxInFlight = WorkerPool.maxInFlight(pool);
+		final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+		final List<byte[]> hashes = new ArrayList<>();
+		try {
+			while (true) {
+				final byte[] leaf = readLeaf(is, leafSize);
+				if (leaf.length == 0 && !(hashes.isEmpty() && inFlight.isEmpty())) {
+					break;
+				}
+
+				inFlight.add(pool.submit(() -> DigestEngines.messageDigest(algorithm).digest(leaf)));
+				if (inFlight.size() >= maxInFlight) {
+					hashes.add(WorkerPool.await(inFlight.poll()));
+				}
+
+				if (leaf.length < leafSize) {
+					break;
+				}
+			}
+
+			while (!inFlight.isEmpty()) {
+				hashes.add(WorkerPool.await(inFlight.poll()));
+			}
+
+			return hashes;
+		} finally {
+			for (final Future<byte[]> leaf : inFlight) {
+				leaf.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Combines the hashes of the leaves into the root hash.
+	 */
+	public static byte[] root(final List<byte[]> leaves, final String algorithm) throws NoSuchAlgorithmException {
+		final MessageDigest engine = checkAlgorithm(algorithm);
+
+		List<byte[]> level = leaves;
+		while (level.size() > 1) {
+			final List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+			for (int i = 0; i < level.size(); i += 2) {
+				if (i + 1 < level.size()) {
+					engine.update(level.get(i));
+					engine.update(level.get(i + 1));
+					next.add(engine.digest());
+				} else {
+					next.add(level.get(i));
+				}
+			}
+			level = next;
+		}
+
+		return level.get(0);
+	}
+
+	private static MessageDigest checkAlgorithm(final String algorithm) throws NoSuchAlgorithmException {
+		final MessageDigest engine = DigestEngines.messageDigest(algorithm);
+		if (engine == null) {
+			throw new NoSuchAlgorithmException(algorithm);
+		}
+
+		return engine;
+	}
+
+	/**
+	 * Hashes the leaves of a file from the first one up to the last one,
+	 * excluded, reading them by chunks at their positions.
+	 */
+	private static List<byte[]> hashLeaves(final FileChannel channel, final String algorithm, final int leafSize,
+			final long size, final long firstLeaf, final long lastLeaf) throws IOException {
+		final MessageDigest engine = DigestEngines.messageDigest(algorithm);
+		final ByteBuffer buffer = ByteBuffer.allocate(ModuleProperties.get().getStreamChunkSize());
+		final List<byte[]> hashes = new ArrayList<>((int) (lastLeaf - firstLeaf));
+
+		long position = firstLeaf * leafSize;
+		final long end = Math.min(size, lastLeaf * leafSize);
+		long leafEnd = Math.min(end, position + leafSize);
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			if (channel.read(buffer, position) < 0) {
+				throw new EOFException("The file was truncated while being hashed.");
+			}
+			buffer.flip();
+
+			while (buffer.hasRemaining()) {
+				final int length = (int) Math.min(buffer.remaining(), leafEnd - position);
+				final int limit = buffer.limit();
+				buffer.limit(buffer.position() + length);
+				engine.update(buffer);
+				buffer.limit(limit);
+
+				position += length;
+				if (position == leafEnd) {
+					hashes.add(engine.digest());
+					leafEnd = Math.min(end, position + leafSize);
+				}
+			}
+		}
+
+		if (size == 0) {
+			hashes.add(engine.digest());
+		}
+
+		return hashes;
+	}
+
+	private static byte[] readLeaf(final InputStream is, final int length) throws IOException {
+		final byte[] leaf = new byte[length];
+		int total = 0;
+		int read;
+		while (total < length && (read = is.read(leaf, total, length - total)) > -1) {
+			total += read;
+		}
+
+		return total == length ? leaf : Arrays.copyOf(leaf, total);
+	}
+}
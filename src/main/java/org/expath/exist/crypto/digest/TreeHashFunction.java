@@ -0,0 +1,168 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digest;
+
+import static org.exist.xquery.FunctionDSL.arities;
+import static org.exist.xquery.FunctionDSL.arity;
+import static org.exist.xquery.FunctionDSL.optParam;
+import static org.exist.xquery.FunctionDSL.param;
+import static org.exist.xquery.FunctionDSL.returns;
+import static org.expath.exist.crypto.ExistExpathCryptoModule.functionSignatures;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.lock.Lock;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.ErrorCodes.ErrorCode;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.BooleanValue;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+import org.expath.exist.crypto.EXpathCryptoException;
+import org.expath.exist.crypto.ExpathCryptoErrorCode;
+
+import ro.kuberam.libs.java.crypto.CryptoException;
+
+/**
+ * Implements the crypto:tree-hash() function for eXist, which computes the
+ * {@link TreeHash} of binary data, or of a binary resource stored in the
+ * database, whose leaves are then read from its backing file concurrently.
+ */
+public class TreeHashFunction extends BasicFunction {
+
+	public final static ErrorCode INVALID_CHUNK_SIZE = new ExpathCryptoErrorCode("INVALID_CHUNK_SIZE",
+			"The chunk size must be between 1 and 67108864 bytes.");
+
+	private static final int MAX_LEAF_SIZE = 64 * 1024 * 1024;
+
+	private static final String FS_TREE_HASH_NAME = "tree-hash";
+	private static final FunctionParameterSequenceType FS_TREE_HASH_PARAM_DATA = param("data", Type.ITEM,
+			"The data to be hashed, as xs:base64Binary or xs:hexBinary, or the database URI of a binary resource, whose chunks are then read concurrently.");
+	private static final FunctionParameterSequenceType FS_TREE_HASH_PARAM_ALGORITHM = param("algorithm",
+			Type.STRING, "The cryptographic hashing algorithm, e.g. \"SHA-256\".");
+	private static final FunctionParameterSequenceType FS_TREE_HASH_PARAM_CHUNK_SIZE = optParam("chunk-size",
+			Type.INTEGER, "The size of the leaves, in bytes. The default value is 1048576, as in Amazon Glacier.");
+
+	public static final FunctionSignature FS_TREE_HASH[] = functionSignatures(FS_TREE_HASH_NAME,
+			"Computes the tree hash of the data, whose leaves are hashed in parallel, and then hashed by pairs up to the root. With SHA-256 and the default chunk size, this is the tree hash of Amazon Glacier.",
+			returns(Type.ITEM,
+					"the root hash, as lowercase hex string, or, if $leaves is true(), a map with the root hash under the key 'root', and the hashes of the leaves, in order, under the key 'leaves'."),
+			arities(arity(FS_TREE_HASH_PARAM_DATA, FS_TREE_HASH_PARAM_ALGORITHM),
+					arity(FS_TREE_HASH_PARAM_DATA, FS_TREE_HASH_PARAM_ALGORITHM, FS_TREE_HASH_PARAM_CHUNK_SIZE),
+					arity(FS_TREE_HASH_PARAM_DATA, FS_TREE_HASH_PARAM_ALGORITHM, FS_TREE_HASH_PARAM_CHUNK_SIZE,
+							param("leaves", Type.BOOLEAN,
+									"If the hashes of the leaves are returned as well, so that only the changed leaves of modified data have to be hashed again."))));
+
+	public TreeHashFunction(final XQueryContext context, final FunctionSignature signature) {
+		super(context, signature);
+	}
+
+	@Override
+	public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+		final Item data = args[0].itemAt(0);
+		final String algorithm = args[1].getStringValue();
+		final long leafSize = args.length >= 3 && !args[2].isEmpty() ? ((IntegerValue) args[2].itemAt(0)).getLong()
+				: TreeHash.DEFAULT_LEAF_SIZE;
+		final boolean withLeaves = args.length == 4 && ((BooleanValue) args[3].itemAt(0)).getValue();
+
+		if (leafSize < 1 || leafSize > MAX_LEAF_SIZE) {
+			throw new EXpathCryptoException(this, INVALID_CHUNK_SIZE, INVALID_CHUNK_SIZE.getDescription());
+		}
+
+		try {
+			if (DigestEngines.messageDigest(algorithm) == null) {
+				throw DigestEngines.unknownAlgorithm(algorithm);
+			}
+
+			final List<byte[]> leaves = data.getType() == Type.BASE64_BINARY || data.getType() == Type.HEX_BINARY
+					? streamLeaves((BinaryValue) data, algorithm, (int) leafSize)
+					: resourceLeaves(data.getStringValue(), algorithm, (int) leafSize);
+			final StringValue root = new StringValue(DigestEngines.hex(TreeHash.root(leaves, algorithm)));
+			if (!withLeaves) {
+				return root;
+			}
+
+			final ValueSequence leafHashes = new ValueSequence(leaves.size());
+			for (final byte[] leaf : leaves) {
+				leafHashes.add(new StringValue(DigestEngines.hex(leaf)));
+			}
+
+			final MapType result = new MapType(context);
+			result.add(new StringValue("root"), root);
+			result.add(new StringValue("leaves"), leafHashes);
+
+			return result;
+		} catch (final CryptoException e) {
+			throw new EXpathCryptoException(this, e.getCryptoError());
+		} catch (final IOException | GeneralSecurityException e) {
+			throw new EXpathCryptoException(this, e);
+		}
+	}
+
+	private List<byte[]> streamLeaves(final BinaryValue data, final String algorithm, final int leafSize)
+			throws IOException, GeneralSecurityException {
+		try (final InputStream is = data.getInputStream()) {
+			return TreeHash.leaves(is, algorithm, leafSize);
+		}
+	}
+
+	private List<byte[]> resourceLeaves(final String resourceUri, final String algorithm, final int leafSize)
+			throws XPathException, IOException, GeneralSecurityException {
+		DocumentImpl resource = null;
+		try {
+			resource = context.getBroker().getXMLResource(XmldbURI.xmldbUriFor(resourceUri), Lock.LockMode.READ_LOCK);
+			if (resource == null || resource.getResourceType() != DocumentImpl.BINARY_FILE) {
+				throw new EXpathCryptoException(this, HashResourceFunction.NO_BINARY_RESOURCE,
+						HashResourceFunction.NO_BINARY_RESOURCE.getDescription() + " URI: " + resourceUri);
+			}
+
+			final Path file = context.getBroker().getBinaryFile((BinaryDocument) resource);
+			try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				return TreeHash.leaves(channel, algorithm, leafSize);
+			}
+		} catch (final URISyntaxException | PermissionDeniedException e) {
+			throw new EXpathCryptoException(this, e);
+		} finally {
+			if (resource != null) {
+				resource.getUpdateLock().release(Lock.LockMode.READ_LOCK);
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digitalSignature;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * Thread-safe pool of namespace-aware {@link DocumentBuilder}s, created by a
+ * single factory which is looked up and configured once, when the module is
+ * loaded. The builders are reset when they are returned to the pool.
+ */
+public final class DocumentBuilderPool {
+
+	public static final int DEFAULT_MAX_IDLE = 32;
+
+	private static final DocumentBuilderFactory FACTORY = DocumentBuilderFactory.newInstance();
+	static {
+		FACTORY.setNamespaceAware(true);
+	}
+
+	private static volatile BlockingQueue<DocumentBuilder> idle = new ArrayBlockingQueue<>(DEFAULT_MAX_IDLE);
+
+	private DocumentBuilderPool() {
+	}
+
+	/**
+	 * Sets the maximum number of idle builders kept by the pool.
+	 */
+	public static synchronized void configure(final int maxIdle) {
+		if (idle.size() + idle.remainingCapacity() != Math.max(1, maxIdle)) {
+			idle = new ArrayBlockingQueue<>(Math.max(1, maxIdle));
+		}
+	}
+
+	/**
+	 * Borrows a builder, which has to be returned with
+	 * {@link #returnDocumentBuilder(DocumentBuilder)}.
+	 */
+	public static DocumentBuilder borrowDocumentBuilder() throws ParserConfigurationException {
+		final DocumentBuilder documentBuilder = idle.poll();
+		if (documentBuilder != null) {
+			return documentBuilder;
+		}
+
+		synchronized (FACTORY) {
+			return FACTORY.newDocumentBuilder();
+		}
+	}
+
+	public static void returnDocumentBuilder(final DocumentBuilder documentBuilder) {
+		documentBuilder.reset();
+		idle.offer(documentBuilder);
+	}
+}
@@ -23,13 +23,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
 
+import javax.xml.crypto.MarshalException;
 import javax.xml.crypto.dsig.XMLSignatureException;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -39,8 +38,8 @@ import org.exist.dom.persistent.BinaryDocument;
 import org.exist.dom.persistent.DocumentImpl;
 import org.exist.security.PermissionDeniedException;
 import org.exist.storage.lock.Lock;
-import org.exist.storage.serializers.Serializer;
-import org.exist.validation.internal.node.NodeInputStream;
+import org.exist.util.XMLReaderPool;
+import org.exist.util.serializer.DOMStreamer;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.BasicFunction;
 import org.exist.xquery.FunctionSignature;
@@ -51,6 +50,8 @@ import org.exist.xquery.value.NodeValue;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.Type;
 import org.expath.exist.crypto.EXpathCryptoException;
+import org.expath.exist.crypto.metrics.CryptoMetrics;
+import org.expath.exist.crypto.metrics.FunctionMetrics;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -125,15 +126,21 @@ public class GenerateSignatureFunction extends BasicFunction {
 
 	@Override
 	public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
-		Serializer serializer = context.getBroker().getSerializer();
-		NodeValue inputNode = (NodeValue) args[0].itemAt(0);
-		Document inputDOMDoc;
+		final FunctionMetrics metrics = CryptoMetrics.metrics(FS_GENERATE_SIGNATURE_NAME, args[3].getStringValue());
+		final long startTime = System.nanoTime();
+		boolean failed = true;
+		try {
+			final Sequence result = sign(args);
+			failed = false;
 
-		try (InputStream inputNodeStream = new NodeInputStream(serializer, inputNode)) {
-			inputDOMDoc = inputStreamToDocument(inputNodeStream);
-		} catch (IOException e) {
-			throw new EXpathCryptoException(this, e);
+			return result;
+		} finally {
+			metrics.record(startTime, failed);
 		}
+	}
+
+	private Sequence sign(final Sequence[] args) throws XPathException {
+		NodeValue inputNode = (NodeValue) args[0].itemAt(0);
 
 		String canonicalizationAlgorithm = args[1].getStringValue();
 		String digestAlgorithm = args[2].getStringValue();
@@ -141,16 +148,20 @@ public class GenerateSignatureFunction extends BasicFunction {
 		String signatureNamespacePrefix = args[4].getStringValue();
 		String signatureType = args[5].getStringValue();
 
-		String signatureString = null;
 		Document signatureDocument = null;
 
 		// get the XPath expression and/or the certificate's details
 		String xpathExprString = null;
 		String[] certificateDetails = new String[5];
 		certificateDetails[0] = "";
+		boolean withCertificate = false;
 		InputStream keyStoreInputStream = null;
+		DocumentBuilder documentBuilder = null;
 
 		try {
+			// the input node is streamed into a DOM document, without serialization
+			documentBuilder = DocumentBuilderPool.borrowDocumentBuilder();
+			final Document inputDOMDoc = SAXToDOMHandler.toDocument(inputNode, context.getBroker(), documentBuilder);
 
 			// function with 7 arguments
 			if (args.length == 7) {
@@ -160,8 +171,7 @@ public class GenerateSignatureFunction extends BasicFunction {
 					final Node certificateDetailsNode = ((NodeValue) args[6].itemAt(0)).getNode();
 					// get the certificate details
 					certificateDetails = getDigitalCertificateDetails(certificateDetails, certificateDetailsNode);
-					// get the keystore InputStream
-					keyStoreInputStream = getKeyStoreInputStream(certificateDetails[4]);
+					withCertificate = true;
 				}
 			}
 
@@ -171,21 +181,46 @@ public class GenerateSignatureFunction extends BasicFunction {
 				final Node certificateDetailsNode = ((NodeValue) args[7].itemAt(0)).getNode();
 				// get the certificate details
 				certificateDetails = getDigitalCertificateDetails(certificateDetails, certificateDetailsNode);
-				// get the keystore InputStream
-				keyStoreInputStream = getKeyStoreInputStream(certificateDetails[4]);
+				withCertificate = true;
 			}
 
-			signatureString = GenerateXmlSignature.generate(inputDOMDoc, canonicalizationAlgorithm, digestAlgorithm,
-					signatureAlgorithm, signatureNamespacePrefix, signatureType, xpathExprString, certificateDetails,
-					keyStoreInputStream);
-			keyStoreInputStream.close();
+			// the algorithm names are checked the same way for all the signature types
+			XmlSignatureGenerator.checkAlgorithms(canonicalizationAlgorithm, digestAlgorithm, signatureAlgorithm);
+
+			if (XmlSignatureGenerator.supports(signatureType)) {
+				// the signing key is loaded once per keystore, or generated
+				final SigningKey signingKey = withCertificate ? getSigningKey(certificateDetails)
+						: XmlSignatureGenerator.generateSigningKey(signatureAlgorithm);
 
-			signatureDocument = stringToDocument(signatureString);
+				final Document signedDOMDoc = XmlSignatureGenerator.sign(inputDOMDoc, canonicalizationAlgorithm,
+						digestAlgorithm, signatureAlgorithm, signatureNamespacePrefix, signatureType, xpathExprString,
+						signingKey, documentBuilder);
+
+				// the signed DOM document is replayed into an in-memory document
+				signatureDocument = domToDocument(signedDOMDoc);
+			} else {
+				if (withCertificate) {
+					// get the keystore InputStream
+					keyStoreInputStream = getKeyStoreInputStream(certificateDetails[4]);
+				}
+
+				final String signatureString = GenerateXmlSignature.generate(inputDOMDoc, canonicalizationAlgorithm,
+						digestAlgorithm, signatureAlgorithm, signatureNamespacePrefix, signatureType,
+						xpathExprString, certificateDetails, keyStoreInputStream);
+
+				signatureDocument = stringToDocument(signatureString);
+			}
 
 			return (Sequence) signatureDocument;
-		} catch (CryptoException | IOException | XMLSignatureException e) {
+		} catch (CryptoException e) {
+			throw new EXpathCryptoException(this, e.getCryptoError());
+		} catch (IOException | XMLSignatureException | GeneralSecurityException | MarshalException
+				| ParserConfigurationException | SAXException e) {
 			throw new EXpathCryptoException(this, e);
 		} finally {
+			if (documentBuilder != null) {
+				DocumentBuilderPool.returnDocumentBuilder(documentBuilder);
+			}
 			if (keyStoreInputStream != null) {
 				try {
 					keyStoreInputStream.close();
@@ -197,13 +232,67 @@ public class GenerateSignatureFunction extends BasicFunction {
 
 	}
 
+	/**
+	 * Gets the signing key from the cache, if the keystore has not been modified
+	 * since it was loaded, or from the keystore stored in the database. The
+	 * keystore is only locked and read on a cache miss.
+	 */
+	private SigningKey getSigningKey(final String[] certificateDetails)
+			throws CryptoException, IOException, GeneralSecurityException {
+		final DocumentImpl keyStoreDoc;
+		try {
+			keyStoreDoc = context.getBroker().getXMLResource(XmldbURI.xmldbUriFor(certificateDetails[4]),
+					Lock.LockMode.NO_LOCK);
+		} catch (final PermissionDeniedException e) {
+			LOG.error(CryptoError.DENIED_KEYSTORE.getDescription());
+			throw new CryptoException(CryptoError.UNREADABLE_KEYSTORE, e);
+		} catch (final URISyntaxException e) {
+			LOG.error(CryptoError.KEYSTORE_URL.getDescription());
+			throw new CryptoException(CryptoError.UNREADABLE_KEYSTORE, e);
+		}
+		if (keyStoreDoc == null) {
+			throw new CryptoException(CryptoError.UNREADABLE_KEYSTORE);
+		}
+
+		final long lastModified = keyStoreDoc.getMetadata().getLastModified();
+		final String cacheKey = KeyStoreCache.key(certificateDetails, keyStoreDoc.getDocId(), lastModified);
+		SigningKey signingKey = KeyStoreCache.get(cacheKey);
+		if (signingKey == null) {
+			try (final InputStream keyStoreInputStream = getKeyStoreInputStream(certificateDetails[4])) {
+				if (keyStoreInputStream == null) {
+					throw new CryptoException(CryptoError.UNREADABLE_KEYSTORE);
+				}
+				signingKey = KeyStoreCache.load(certificateDetails, keyStoreInputStream);
+			}
+			// the last-modified time has a resolution of one millisecond, so a keystore
+			// replaced within the millisecond it was loaded in would keep its cache key
+			if (System.currentTimeMillis() > lastModified) {
+				KeyStoreCache.put(cacheKey, signingKey);
+			}
+		}
+
+		return signingKey;
+	}
+
+	private Document domToDocument(final Document document) throws SAXException {
+		final SAXAdapter adapter = new SAXAdapter(context);
+		final DOMStreamer streamer = new DOMStreamer(adapter, adapter);
+
+		adapter.startDocument();
+		for (Node child = document.getFirstChild(); child != null; child = child.getNextSibling()) {
+			streamer.serialize(child);
+		}
+		adapter.endDocument();
+
+		return adapter.getDocument();
+	}
+
 	private Document stringToDocument(final String signatureString) throws XPathException {
 		// process the output (signed) document from string to node()
+		final XMLReaderPool parserPool = context.getBroker().getBrokerPool().getParserPool();
+		XMLReader xr = null;
 		try {
-			final SAXParserFactory factory = SAXParserFactory.newInstance();
-			factory.setNamespaceAware(true);
-			final SAXParser parser = factory.newSAXParser();
-			final XMLReader xr = parser.getXMLReader();
+			xr = parserPool.borrowXMLReader();
 			final SAXAdapter adapter = new SAXAdapter(context);
 			xr.setContentHandler(adapter);
 			xr.setProperty(Namespaces.SAX_LEXICAL_HANDLER, adapter);
@@ -211,10 +300,12 @@ public class GenerateSignatureFunction extends BasicFunction {
 
 			return adapter.getDocument();
 
-		} catch (final ParserConfigurationException e) {
-			throw new XPathException(this, "Error while constructing XML parser: " + e.getMessage());
 		} catch (final SAXException | IOException e) {
 			throw new XPathException(this, "Error while parsing XML: " + e.getMessage());
+		} finally {
+			if (xr != null) {
+				parserPool.returnXMLReader(xr);
+			}
 		}
 	}
 
@@ -263,32 +354,13 @@ public class GenerateSignatureFunction extends BasicFunction {
 				LOG.error(CryptoError.DENIED_KEYSTORE.getDescription());
 				return null;
 			} finally {
-				keyStoreDoc.getUpdateLock().release(Lock.LockMode.READ_LOCK);
+				if (keyStoreDoc != null) {
+					keyStoreDoc.getUpdateLock().release(Lock.LockMode.READ_LOCK);
+				}
 			}
 		} catch (final URISyntaxException e) {
 			LOG.error(CryptoError.KEYSTORE_URL.getDescription());
 			return null;
 		}
 	}
-
-	private Document inputStreamToDocument(final InputStream inputStream) {
-		// initialize the document builder
-		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-		DocumentBuilder db = null;
-		try {
-			db = dbf.newDocumentBuilder();
-		} catch (ParserConfigurationException ex) {
-		}
-
-		// convert data to DOM document
-		Document document = null;
-		try {
-			document = db.parse(inputStream);
-		} catch (SAXException | IOException ex) {
-			ex.getMessage();
-		}
-
-		return document;
-	}
-}
\ No newline at end of file
+}
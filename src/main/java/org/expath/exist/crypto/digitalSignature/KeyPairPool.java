@@ -0,0 +1,230 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digitalSignature;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Bounded pools of pre-generated key pairs, per (algorithm, key size), for
+ * the signatures generated without a certificate. The pools are refilled by a
+ * background producer thread, so that the key pairs are not generated on the
+ * request threads, unless a pool is exhausted.
+ *
+ * Optionally, one ephemeral key pair per (algorithm, key size) is reused for
+ * a configured lifetime, instead of taking a new one for each signature.
+ */
+public final class KeyPairPool {
+
+	private static final Logger LOG = LogManager.getLogger(KeyPairPool.class);
+
+	public static final int DEFAULT_MAX_SIZE = 4;
+	public static final long DEFAULT_LIFETIME = 0;
+
+	private static volatile int maxSize = DEFAULT_MAX_SIZE;
+	private static volatile long lifetime = DEFAULT_LIFETIME;
+
+	private static final ConcurrentMap<String, Pool> POOLS = new ConcurrentHashMap<>();
+
+	private static final ExecutorService PRODUCER = Executors.newSingleThreadExecutor(task -> {
+		final Thread thread = new Thread(task, "expath-crypto-key-pair-producer");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+
+	private static final LongAdder HITS = new LongAdder();
+	private static final LongAdder MISSES = new LongAdder();
+
+	private KeyPairPool() {
+	}
+
+	/**
+	 * Sets the maximum number of pre-generated key pairs per (algorithm, key
+	 * size) (0 disables the pools), and the lifetime of a reused key pair, in
+	 * milliseconds (0 means that each signature has its own key pair).
+	 */
+	public static synchronized void configure(final int maxSize, final long lifetime) {
+		if (KeyPairPool.maxSize == Math.max(0, maxSize) && KeyPairPool.lifetime == Math.max(0, lifetime)) {
+			return;
+		}
+
+		KeyPairPool.maxSize = Math.max(0, maxSize);
+		KeyPairPool.lifetime = Math.max(0, lifetime);
+		clear();
+	}
+
+	/**
+	 * Gets a key pair, taken from the pool, or reused, or generated if the pool
+	 * is exhausted. The pool of an (algorithm, key size) is created, and filled,
+	 * on its first use.
+	 */
+	public static KeyPair keyPair(final String algorithm, final int keySize) throws GeneralSecurityException {
+		if (maxSize == 0 && lifetime == 0) {
+			return generate(algorithm, keySize);
+		}
+
+		return POOLS.computeIfAbsent(algorithm + "/" + keySize, name -> new Pool(algorithm, keySize, maxSize))
+				.take();
+	}
+
+	public static long getHits() {
+		return HITS.sum();
+	}
+
+	public static long getMisses() {
+		return MISSES.sum();
+	}
+
+	/**
+	 * Returns the number of pre-generated key pairs available, in all the pools.
+	 */
+	public static int size() {
+		return POOLS.values().stream().mapToInt(Pool::size).sum();
+	}
+
+	public static void clear() {
+		POOLS.clear();
+	}
+
+	private static KeyPair generate(final String algorithm, final int keySize) throws GeneralSecurityException {
+		final KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(algorithm);
+		keyPairGenerator.initialize(keySize);
+
+		return keyPairGenerator.generateKeyPair();
+	}
+
+	private static final class Pool {
+		private final String algorithm;
+		private final int keySize;
+		@Nullable
+		private final BlockingQueue<KeyPair> keyPairs;
+		private final AtomicBoolean refilling = new AtomicBoolean();
+		@Nullable
+		private volatile Ephemeral current;
+
+		private Pool(final String algorithm, final int keySize, final int maxSize) {
+			this.algorithm = algorithm;
+			this.keySize = keySize;
+			this.keyPairs = maxSize > 0 ? new ArrayBlockingQueue<>(maxSize) : null;
+			refill();
+		}
+
+		private KeyPair take() throws GeneralSecurityException {
+			final long reuseLifetime = lifetime;
+			if (reuseLifetime == 0) {
+				return next();
+			}
+
+			Ephemeral ephemeral = current;
+			if (ephemeral != null && System.currentTimeMillis() - ephemeral.created < reuseLifetime) {
+				HITS.increment();
+				return ephemeral.keyPair;
+			}
+
+			synchronized (this) {
+				ephemeral = current;
+				if (ephemeral != null && System.currentTimeMillis() - ephemeral.created < reuseLifetime) {
+					HITS.increment();
+					return ephemeral.keyPair;
+				}
+
+				final KeyPair keyPair = next();
+				current = new Ephemeral(keyPair, System.currentTimeMillis());
+
+				return keyPair;
+			}
+		}
+
+		private KeyPair next() throws GeneralSecurityException {
+			final KeyPair keyPair = keyPairs != null ? keyPairs.poll() : null;
+			refill();
+
+			if (keyPair != null) {
+				HITS.increment();
+				return keyPair;
+			}
+			MISSES.increment();
+
+			return generate(algorithm, keySize);
+		}
+
+		private void refill() {
+			if (keyPairs == null || keyPairs.remainingCapacity() == 0 || !refilling.compareAndSet(false, true)) {
+				return;
+			}
+
+			try {
+				PRODUCER.execute(this::fill);
+			} catch (final RejectedExecutionException e) {
+				refilling.set(false);
+			}
+		}
+
+		/**
+		 * Fills the pool. A key pair taken after the pool was full, but before the
+		 * refilling flag was cleared, did not get its refill scheduled, so the pool
+		 * is checked again once the flag is cleared.
+		 */
+		private void fill() {
+			do {
+				try {
+					while (keyPairs.remainingCapacity() > 0) {
+						keyPairs.offer(generate(algorithm, keySize));
+					}
+				} catch (final GeneralSecurityException e) {
+					LOG.warn("Unable to generate a {} key pair of {} bits: {}", algorithm, keySize, e.getMessage());
+					refilling.set(false);
+					return;
+				}
+				refilling.set(false);
+			} while (keyPairs.remainingCapacity() > 0 && refilling.compareAndSet(false, true));
+		}
+
+		private int size() {
+			return keyPairs != null ? keyPairs.size() : 0;
+		}
+	}
+
+	private static final class Ephemeral {
+		private final KeyPair keyPair;
+		private final long created;
+
+		private Ephemeral(final KeyPair keyPair, final long created) {
+			this.keyPair = keyPair;
+			this.created = created;
+		}
+	}
+}
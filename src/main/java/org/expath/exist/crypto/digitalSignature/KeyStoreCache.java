@@ -0,0 +1,148 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digitalSignature;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.expath.exist.crypto.digest.DigestEngines;
+import org.expath.exist.crypto.utils.BoundedCache;
+
+import ro.kuberam.libs.java.crypto.CryptoError;
+import ro.kuberam.libs.java.crypto.CryptoException;
+
+/**
+ * Bounded LRU cache of the signing keys loaded from keystores stored in the
+ * database, keyed by (keystore URI, keystore type, key alias, keystore
+ * document id and last-modified time, fingerprint of the passwords), so that a
+ * keystore is read, parsed and its private key decrypted only once, until the
+ * keystore is modified.
+ */
+public final class KeyStoreCache {
+
+	public static final int DEFAULT_MAX_SIZE = 64;
+	public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(1);
+
+	private static final BoundedCache<SigningKey> SIGNING_KEYS = new BoundedCache<>(DEFAULT_MAX_SIZE, DEFAULT_TTL,
+			false);
+
+	private KeyStoreCache() {
+	}
+
+	/**
+	 * Sets the maximum number of cached keys (0 disables the cache), and the time
+	 * to live of a cached key, in milliseconds (0 means no expiry).
+	 */
+	public static void configure(final int maxSize, final long ttl) {
+		SIGNING_KEYS.configure(maxSize, ttl);
+	}
+
+	/**
+	 * Builds the cache key of a signing key.
+	 *
+	 * @param certificateDetails the keystore type, keystore password, key alias,
+	 *                           private key password and keystore URI
+	 * @param docId              the document id of the keystore
+	 * @param lastModified       the last-modified time of the keystore
+	 */
+	public static String key(final String[] certificateDetails, final int docId, final long lastModified) {
+		final MessageDigest sha256 = DigestEngines.messageDigest("SHA-256");
+		sha256.update(certificateDetails[1].getBytes(UTF_8));
+		sha256.update((byte) 0);
+		sha256.update(certificateDetails[3].getBytes(UTF_8));
+
+		return certificateDetails[4] + '\u0000' + certificateDetails[0] + '\u0000' + certificateDetails[2] + '\u0000'
+				+ docId + '\u0000' + lastModified + '\u0000' + Base64.getEncoder().encodeToString(sha256.digest());
+	}
+
+	/**
+	 * Gets a cached signing key.
+	 *
+	 * @return the signing key, or null if it is not cached, or it has expired.
+	 */
+	@Nullable
+	public static SigningKey get(final String key) {
+		return SIGNING_KEYS.get(key);
+	}
+
+	public static void put(final String key, final SigningKey signingKey) {
+		SIGNING_KEYS.put(key, signingKey);
+	}
+
+	/**
+	 * Loads the signing key from the keystore.
+	 *
+	 * @param certificateDetails the keystore type, keystore password, key alias,
+	 *                           private key password and keystore URI
+	 * @param keyStoreInputStream the content of the keystore
+	 * @throws CryptoException with the INVALID_CRYPTO_KEY error, if the alias
+	 *                         is not of a private key with an X.509 certificate
+	 */
+	public static SigningKey load(final String[] certificateDetails, final InputStream keyStoreInputStream)
+			throws CryptoException, GeneralSecurityException, IOException {
+		final KeyStore keyStore = KeyStore.getInstance(certificateDetails[0]);
+		keyStore.load(keyStoreInputStream, certificateDetails[1].toCharArray());
+
+		final String alias = certificateDetails[2];
+		if (!keyStore.containsAlias(alias)) {
+			throw new KeyStoreException("The keystore does not contain the alias '" + alias + "'.");
+		}
+
+		// e.g. a trusted certificate, which has no password to be read with
+		if (!keyStore.entryInstanceOf(alias, KeyStore.PrivateKeyEntry.class)) {
+			throw new CryptoException(CryptoError.INVALID_CRYPTO_KEY);
+		}
+
+		final KeyStore.PrivateKeyEntry keyEntry = (KeyStore.PrivateKeyEntry) keyStore.getEntry(alias,
+				new KeyStore.PasswordProtection(certificateDetails[3].toCharArray()));
+		if (!(keyEntry.getCertificate() instanceof X509Certificate)) {
+			throw new CryptoException(CryptoError.INVALID_CRYPTO_KEY);
+		}
+
+		return new SigningKey(keyEntry.getPrivateKey(), (X509Certificate) keyEntry.getCertificate());
+	}
+
+	public static long getHits() {
+		return SIGNING_KEYS.getHits();
+	}
+
+	public static long getMisses() {
+		return SIGNING_KEYS.getMisses();
+	}
+
+	public static int size() {
+		return SIGNING_KEYS.size();
+	}
+
+	public static void clear() {
+		SIGNING_KEYS.clear();
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digitalSignature;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.OutputKeys;
+
+import org.exist.storage.DBBroker;
+import org.exist.xquery.value.NodeValue;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Builds a W3C DOM document from SAX events, so that eXist-db nodes can be
+ * handed over to the XML Signature API without being serialized and parsed
+ * again.
+ */
+final class SAXToDOMHandler extends DefaultHandler implements LexicalHandler {
+
+	private static final Properties SERIALIZATION_PROPERTIES = new Properties();
+	static {
+		SERIALIZATION_PROPERTIES.setProperty(OutputKeys.INDENT, "no");
+		SERIALIZATION_PROPERTIES.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+	}
+
+	private final Document document;
+	private final List<String[]> pendingPrefixMappings = new ArrayList<>();
+	private Node current;
+
+	SAXToDOMHandler(final DocumentBuilder documentBuilder) {
+		this.document = documentBuilder.newDocument();
+		this.current = document;
+	}
+
+	/**
+	 * Streams an eXist-db node, persistent or in-memory, into a new DOM document.
+	 */
+	static Document toDocument(final NodeValue node, final DBBroker broker, final DocumentBuilder documentBuilder)
+			throws SAXException {
+		final SAXToDOMHandler handler = new SAXToDOMHandler(documentBuilder);
+		node.toSAX(broker, handler, SERIALIZATION_PROPERTIES);
+
+		return handler.getDocument();
+	}
+
+	Document getDocument() {
+		return document;
+	}
+
+	@Override
+	public void startPrefixMapping(final String prefix, final String uri) {
+		pendingPrefixMappings.add(new String[] { prefix, uri });
+	}
+
+	@Override
+	public void startElement(final String uri, final String localName, final String qName,
+			final Attributes attributes) {
+		final Element element = document.createElementNS(uri == null || uri.isEmpty() ? null : uri, qName);
+
+		for (final String[] mapping : pendingPrefixMappings) {
+			final String prefix = mapping[0];
+			final String name = prefix == null || prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE
+					: XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+			element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, name, mapping[1]);
+		}
+		pendingPrefixMappings.clear();
+
+		for (int i = 0; i < attributes.getLength(); i++) {
+			final String attributeName = attributes.getQName(i);
+			final String attributeUri = attributes.getURI(i);
+			if (attributeName.equals(XMLConstants.XMLNS_ATTRIBUTE)
+					|| attributeName.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":")) {
+				element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, attributeName, attributes.getValue(i));
+			} else {
+				element.setAttributeNS(attributeUri == null || attributeUri.isEmpty() ? null : attributeUri,
+						attributeName, attributes.getValue(i));
+			}
+		}
+
+		current.appendChild(element);
+		current = element;
+	}
+
+	@Override
+	public void endElement(final String uri, final String localName, final String qName) {
+		current = current.getParentNode();
+	}
+
+	@Override
+	public void characters(final char[] ch, final int start, final int length) {
+		if (current == document) {
+			return;
+		}
+
+		final Node last = current.getLastChild();
+		if (last != null && last.getNodeType() == Node.TEXT_NODE) {
+			((Text) last).appendData(new String(ch, start, length));
+		} else {
+			current.appendChild(document.createTextNode(new String(ch, start, length)));
+		}
+	}
+
+	@Override
+	public void ignorableWhitespace(final char[] ch, final int start, final int length) {
+		characters(ch, start, length);
+	}
+
+	@Override
+	public void processingInstruction(final String target, final String data) {
+		current.appendChild(document.createProcessingInstruction(target, data));
+	}
+
+	@Override
+	public void comment(final char[] ch, final int start, final int length) {
+		current.appendChild(document.createComment(new String(ch, start, length)));
+	}
+
+	@Override
+	public void startCDATA() {
+	}
+
+	@Override
+	public void endCDATA() {
+	}
+
+	@Override
+	public void startDTD(final String name, final String publicId, final String systemId) {
+	}
+
+	@Override
+	public void endDTD() {
+	}
+
+	@Override
+	public void startEntity(final String name) {
+	}
+
+	@Override
+	public void endEntity(final String name) {
+	}
+}
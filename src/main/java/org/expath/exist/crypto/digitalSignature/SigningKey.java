@@ -0,0 +1,64 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digitalSignature;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nullable;
+
+/**
+ * The private key used for signing, together with either its certificate (for
+ * keys loaded from a keystore) or its public key (for generated key pairs).
+ */
+public class SigningKey {
+
+	private final PrivateKey privateKey;
+	private final PublicKey publicKey;
+	@Nullable
+	private final X509Certificate certificate;
+
+	public SigningKey(final PrivateKey privateKey, final X509Certificate certificate) {
+		this.privateKey = privateKey;
+		this.publicKey = certificate.getPublicKey();
+		this.certificate = certificate;
+	}
+
+	public SigningKey(final KeyPair keyPair) {
+		this.privateKey = keyPair.getPrivate();
+		this.publicKey = keyPair.getPublic();
+		this.certificate = null;
+	}
+
+	public PrivateKey getPrivateKey() {
+		return privateKey;
+	}
+
+	public PublicKey getPublicKey() {
+		return publicKey;
+	}
+
+	@Nullable
+	public X509Certificate getCertificate() {
+		return certificate;
+	}
+}
@@ -20,33 +20,27 @@
 package org.expath.exist.crypto.digitalSignature;
 
 import java.io.IOException;
-import java.io.Reader;
-import java.io.StringReader;
-import java.util.Properties;
 
 import javax.xml.crypto.dsig.XMLSignatureException;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-import org.exist.storage.serializers.Serializer;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.storage.DBBroker;
 import org.exist.xquery.BasicFunction;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
 import org.exist.xquery.value.BooleanValue;
+import org.exist.xquery.value.FunctionParameterSequenceType;
 import org.exist.xquery.value.NodeValue;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.Type;
 import org.expath.exist.crypto.EXpathCryptoException;
+import org.expath.exist.crypto.metrics.CryptoMetrics;
+import org.expath.exist.crypto.metrics.FunctionMetrics;
 import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.SAXNotRecognizedException;
-import org.xml.sax.SAXNotSupportedException;
 
 import ro.kuberam.libs.java.crypto.CryptoException;
 import ro.kuberam.libs.java.crypto.digitalSignature.ValidateXmlSignature;
@@ -62,69 +56,116 @@ import static org.expath.exist.crypto.ExistExpathCryptoModule.*;
  */
 public class ValidateSignatureFunction extends BasicFunction {
 
-	private static final Logger LOG = LogManager.getLogger(ValidateSignatureFunction.class);
+	private static final String FS_VALIDATE_SIGNATURE_NAME = "validate-signature";
 
-	public final static FunctionSignature FS_VALIDATE_SIGNATURE = functionSignature("validate-signature",
+	/**
+	 * The algorithm under which the validations are recorded in the metrics, as
+	 * the algorithms are only known to the validating library.
+	 */
+	private static final String SIGNATURE_SYNTAX = "xmldsig";
+
+	private static final FunctionParameterSequenceType FS_VALIDATE_SIGNATURE_PARAM_DATA = param("data", Type.NODE,
+			"The enveloped, enveloping, or detached signature.");
+
+	public final static FunctionSignature FS_VALIDATE_SIGNATURE[] = functionSignatures(FS_VALIDATE_SIGNATURE_NAME,
 			"This function validates an XML Digital Signature.",
 			returns(Type.BOOLEAN, "boolean value true() if the signature is valid, otherwise return value false()."),
-			param("data", Type.NODE, "The enveloped, enveloping, or detached signature."));
+			arities(arity(FS_VALIDATE_SIGNATURE_PARAM_DATA),
+					arity(FS_VALIDATE_SIGNATURE_PARAM_DATA, param("use-cache", Type.BOOLEAN,
+							"If the outcome of the validation of a node stored in the database may be taken from, and stored into, the validation cache (the default is true(), if the cache is enabled in the module's configuration)."))));
 
 	public ValidateSignatureFunction(final XQueryContext context, final FunctionSignature signature) {
 		super(context, signature);
 	}
 
-	private static final Properties defaultOutputKeysProperties = new Properties();
-	static {
-		defaultOutputKeysProperties.setProperty(OutputKeys.INDENT, "no");
-		defaultOutputKeysProperties.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-		defaultOutputKeysProperties.setProperty(OutputKeys.ENCODING, "UTF-8");
-	}
-
 	@Override
 	public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
 		if (args[0].isEmpty()) {
 			return Sequence.EMPTY_SEQUENCE;
 		}
 
-		// get and process the input document or node to InputStream, in order to be
-		// transformed into DOM Document
-		final Serializer serializer = context.getBroker().getSerializer();
-		serializer.reset();
-
-		final Properties outputProperties = new Properties(defaultOutputKeysProperties);
+		// validate the signature
+		boolean isValid = false;
 		try {
-			serializer.setProperties(outputProperties);
-		} catch (SAXNotRecognizedException | SAXNotSupportedException ex) {
-			LOG.error(ex.getMessage(), ex);
+			final boolean useCache = args.length == 2 ? ((BooleanValue) args[1].itemAt(0)).getValue() : true;
+			isValid = validate((NodeValue) args[0].itemAt(0), context.getBroker(), useCache);
+		} catch (CryptoException | IOException | XMLSignatureException | ParserConfigurationException
+				| SAXException e) {
+			throw new EXpathCryptoException(this, e);
 		}
 
-		// initialize the document builder
-		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-		DocumentBuilder db = null;
+		return new BooleanValue(isValid);
+	}
+
+	/**
+	 * Validates the signature of a node, whose DOM document is built straight from
+	 * its SAX events. This can be called concurrently, with one broker per thread.
+	 *
+	 * @param useCache if the outcome for a node stored in the database may be
+	 *                 taken from, and stored into, the {@link ValidationCache}
+	 */
+	static boolean validate(final NodeValue node, final DBBroker broker, final boolean useCache)
+			throws CryptoException, IOException, XMLSignatureException, ParserConfigurationException, SAXException {
+		final FunctionMetrics metrics = CryptoMetrics.metrics(FS_VALIDATE_SIGNATURE_NAME, SIGNATURE_SYNTAX);
+		final long startTime = System.nanoTime();
+		boolean failed = true;
 		try {
-			db = dbf.newDocumentBuilder();
-		} catch (final ParserConfigurationException ex) {
-			LOG.error(ex.getMessage(), ex);
+			final boolean isValid = validateNode(node, broker, useCache);
+			failed = false;
+
+			return isValid;
+		} finally {
+			metrics.record(startTime, failed);
 		}
+	}
 
-		// process the input string to DOM document
-		Document inputDOMDoc = null;
-		try (Reader reader = new StringReader(serializer.serialize((NodeValue) args[0].itemAt(0)))) {
-			inputDOMDoc = db.parse(new InputSource(reader));
-		} catch (SAXException | IOException ex) {
-			LOG.error(ex.getMessage(), ex);
+	/**
+	 * Validates the signature of a DOM document already built, without a broker.
+	 */
+	static boolean validate(final Document document) throws CryptoException, IOException, XMLSignatureException {
+		final FunctionMetrics metrics = CryptoMetrics.metrics(FS_VALIDATE_SIGNATURE_NAME, SIGNATURE_SYNTAX);
+		final long startTime = System.nanoTime();
+		boolean failed = true;
+		try {
+			final boolean isValid = ValidateXmlSignature.validate(document);
+			failed = false;
+
+			return isValid;
+		} finally {
+			metrics.record(startTime, failed);
 		}
+	}
 
-		// validate the signature
-		Boolean isValid = false;
+	/**
+	 * Builds the DOM document of a node from its SAX events.
+	 */
+	static Document toDocument(final NodeValue node, final DBBroker broker)
+			throws ParserConfigurationException, SAXException {
+		final DocumentBuilder db = DocumentBuilderPool.borrowDocumentBuilder();
 		try {
-			isValid = ValidateXmlSignature.validate(inputDOMDoc);
-			// isValid = ValidateXmlSignature.validate((Document)args[0].itemAt(0));
-		} catch (CryptoException | IOException | XMLSignatureException e) {
-			throw new EXpathCryptoException(this, e);
+			return SAXToDOMHandler.toDocument(node, broker, db);
+		} finally {
+			DocumentBuilderPool.returnDocumentBuilder(db);
 		}
+	}
 
-		return new BooleanValue(isValid);
+	private static boolean validateNode(final NodeValue node, final DBBroker broker, final boolean useCache)
+			throws CryptoException, IOException, XMLSignatureException, ParserConfigurationException, SAXException {
+		final String cacheKey = useCache && ValidationCache.isEnabled() && node instanceof NodeProxy
+				? ValidationCache.key((NodeProxy) node)
+				: null;
+		if (cacheKey != null) {
+			final Boolean isValid = ValidationCache.get(cacheKey);
+			if (isValid != null) {
+				return isValid;
+			}
+		}
+
+		final boolean isValid = ValidateXmlSignature.validate(toDocument(node, broker));
+		if (cacheKey != null) {
+			ValidationCache.put(cacheKey, (NodeProxy) node, isValid);
+		}
+
+		return isValid;
 	}
-}
\ No newline at end of file
+}
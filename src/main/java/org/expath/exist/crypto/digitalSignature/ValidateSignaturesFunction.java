@@ -0,0 +1,329 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digitalSignature;
+
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.numbering.NodeId;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.map.MapType;
+import org.exist.xquery.value.AtomicValue;
+import org.exist.xquery.value.BooleanValue;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+import org.expath.exist.crypto.EXpathCryptoException;
+import org.expath.exist.crypto.utils.WorkerPool;
+import org.w3c.dom.Document;
+
+import static org.exist.xquery.FunctionDSL.*;
+import static org.expath.exist.crypto.ExistExpathCryptoModule.*;
+
+/**
+ * Validates the XML Digital Signatures of many documents concurrently, on the
+ * {@link ValidationExecutor}. Each validation runs with its own broker, and its
+ * failure is reported in the result, without aborting the batch. At most twice
+ * as many validations as the parallelism level are pending at any time.
+ * <p>
+ * A validation does not wait for a broker: if none is available when a worker
+ * takes it, the worker leaves it, and the query runs it with its own broker.
+ * The query also runs itself the validation it waits for, if no worker has
+ * taken it yet, and waits for the others only for a bounded time before
+ * looking again, so that the validations of a query cannot wait forever for
+ * brokers held by queries waiting for their own validations.
+ * <p>
+ * The in-memory nodes belong to the query, so their DOM documents are built on
+ * the thread of the query, and only their signatures are validated by the
+ * workers, without brokers.
+ */
+public class ValidateSignaturesFunction extends BasicFunction {
+
+	/**
+	 * How long the query waits for a validation taken by a worker, before
+	 * looking whether the worker has left it.
+	 */
+	private static final long WAIT_MILLIS = 100;
+
+	private static final FunctionParameterSequenceType FS_VALIDATE_SIGNATURES_PARAM_DATA = optManyParam("data",
+			Type.ITEM,
+			"The URI of the collection whose documents are validated (its subcollections are not included), or the signed nodes.");
+
+	public final static FunctionSignature FS_VALIDATE_SIGNATURES[] = functionSignatures("validate-signatures",
+			"This function validates, in parallel, the XML Digital Signatures of the documents stored in a collection, or of a sequence of nodes.",
+			returns(Type.MAP,
+					"a map having as keys the URIs of the documents of the collection, or the positions of the nodes in the input sequence, and as values true() if the signature is valid, false() if it is not, or the error message, if the validation failed."),
+			arities(arity(FS_VALIDATE_SIGNATURES_PARAM_DATA),
+					arity(FS_VALIDATE_SIGNATURES_PARAM_DATA, param("use-cache", Type.BOOLEAN,
+							"If the outcomes of the validations of nodes stored in the database may be taken from, and stored into, the validation cache (the default is true(), if the cache is enabled in the module's configuration)."))));
+
+	public ValidateSignaturesFunction(final XQueryContext context, final FunctionSignature signature) {
+		super(context, signature);
+	}
+
+	@Override
+	public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+		final MapType result = new MapType(context);
+		if (args[0].isEmpty()) {
+			return result;
+		}
+
+		final BrokerPool brokerPool = context.getBroker().getBrokerPool();
+		final Subject subject = context.getBroker().getCurrentSubject();
+		final boolean useCache = args.length == 2 ? ((BooleanValue) args[1].itemAt(0)).getValue() : true;
+		final ForkJoinPool pool = ValidationExecutor.pool();
+		final int maxInFlight = WorkerPool.maxInFlight(pool);
+		final Deque<Validation> inFlight = new ArrayDeque<>();
+
+		try {
+			if (Type.subTypeOf(args[0].itemAt(0).getType(), Type.NODE)) {
+				int position = 1;
+				for (final SequenceIterator i = args[0].iterate(); i.hasNext(); position++) {
+					final Item item = i.nextItem();
+					if (!Type.subTypeOf(item.getType(), Type.NODE)) {
+						throw new XPathException(this, "The items of $data must all be nodes.");
+					}
+					final NodeValue node = (NodeValue) item;
+					final Validation validation = node.getImplementationType() == NodeValue.IN_MEMORY_NODE
+							? new Validation(new IntegerValue(position), false, inMemory(node))
+							: new Validation(new IntegerValue(position), true,
+									broker -> ValidateSignatureFunction.validate(node, broker, useCache));
+					inFlight.add(submit(pool, brokerPool, subject, validation));
+					if (inFlight.size() >= maxInFlight) {
+						complete(inFlight.poll(), result);
+					}
+				}
+			} else {
+				if (args[0].getItemCount() > 1) {
+					throw new XPathException(this, "$data must be the URI of one collection, or nodes.");
+				}
+				for (final XmldbURI documentUri : listDocuments(
+						XmldbURI.xmldbUriFor(args[0].itemAt(0).getStringValue()))) {
+					final StringValue key = new StringValue(documentUri.toString());
+					inFlight.add(submit(pool, brokerPool, subject,
+							new Validation(key, true, broker -> validate(documentUri, broker, useCache))));
+					if (inFlight.size() >= maxInFlight) {
+						complete(inFlight.poll(), result);
+					}
+				}
+			}
+
+			while (!inFlight.isEmpty()) {
+				complete(inFlight.poll(), result);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new EXpathCryptoException(this, e);
+		} catch (final URISyntaxException | PermissionDeniedException | LockException e) {
+			throw new EXpathCryptoException(this, e);
+		} finally {
+			// the workers skip the validations claimed here
+			for (final Validation validation : inFlight) {
+				validation.claim();
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Builds, on the thread of the query, the DOM document of an in-memory node,
+	 * whose signature is then validated without a broker.
+	 */
+	private BrokerValidation inMemory(final NodeValue node) {
+		final Document document;
+		try {
+			document = ValidateSignatureFunction.toDocument(node, context.getBroker());
+		} catch (final Exception e) {
+			return broker -> {
+				throw e;
+			};
+		}
+
+		return broker -> ValidateSignatureFunction.validate(document);
+	}
+
+	/**
+	 * Submits a validation to the pool. The worker which takes it leaves it to
+	 * the query, if it needs a broker and there is none available.
+	 */
+	private static Validation submit(final ForkJoinPool pool, final BrokerPool brokerPool, final Subject subject,
+			final Validation validation) {
+		pool.execute(() -> {
+			if (!validation.claim()) {
+				return;
+			}
+			if (!validation.needsBroker) {
+				validation.run(null);
+				return;
+			}
+			if (brokerPool.available() < 1) {
+				validation.leave();
+				return;
+			}
+
+			try (final DBBroker broker = brokerPool.get(Optional.of(subject))) {
+				validation.run(broker);
+			} catch (final EXistException e) {
+				validation.outcome.completeExceptionally(e);
+			}
+		});
+
+		return validation;
+	}
+
+	/**
+	 * Waits for the outcome of a validation, and adds it to the result. The
+	 * validation is run with the broker of the query, if no worker has taken it,
+	 * or if the worker has left it.
+	 */
+	private void complete(final Validation validation, final MapType result)
+			throws InterruptedException, XPathException {
+		Sequence outcome = null;
+		while (outcome == null) {
+			if (validation.claim()) {
+				validation.run(context.getBroker());
+			}
+			try {
+				outcome = BooleanValue.valueOf(validation.outcome.get(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+			} catch (final TimeoutException e) {
+				// the worker may be waiting for a broker, or may have left the validation
+			} catch (final ExecutionException e) {
+				final Throwable cause = e.getCause();
+				outcome = new StringValue(cause.getMessage() != null ? cause.getMessage() : cause.toString());
+			}
+		}
+		result.add(validation.key, outcome);
+	}
+
+	private List<XmldbURI> listDocuments(final XmldbURI collectionUri)
+			throws PermissionDeniedException, LockException, XPathException {
+		final List<XmldbURI> documentUris = new ArrayList<>();
+		Collection collection = null;
+		try {
+			collection = context.getBroker().openCollection(collectionUri, Lock.LockMode.READ_LOCK);
+			if (collection == null) {
+				throw new XPathException(this, "The collection " + collectionUri + " does not exist.");
+			}
+
+			for (final Iterator<DocumentImpl> i = collection.iterator(context.getBroker()); i.hasNext();) {
+				final DocumentImpl document = i.next();
+				if (document.getResourceType() == DocumentImpl.XML_FILE) {
+					documentUris.add(document.getURI());
+				}
+			}
+		} finally {
+			if (collection != null) {
+				collection.release(Lock.LockMode.READ_LOCK);
+			}
+		}
+
+		return documentUris;
+	}
+
+	private static boolean validate(final XmldbURI documentUri, final DBBroker broker, final boolean useCache)
+			throws Exception {
+		DocumentImpl document = null;
+		try {
+			document = broker.getXMLResource(documentUri, Lock.LockMode.READ_LOCK);
+			if (document == null) {
+				throw new EXistException("The document " + documentUri + " does not exist.");
+			}
+
+			return ValidateSignatureFunction.validate(new NodeProxy(document, NodeId.DOCUMENT_NODE), broker,
+					useCache);
+		} finally {
+			if (document != null) {
+				document.getUpdateLock().release(Lock.LockMode.READ_LOCK);
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface BrokerValidation {
+		boolean validate(DBBroker broker) throws Exception;
+	}
+
+	private static final class Validation {
+		private final AtomicValue key;
+		private final boolean needsBroker;
+		private final BrokerValidation task;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		private final CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+
+		private Validation(final AtomicValue key, final boolean needsBroker, final BrokerValidation task) {
+			this.key = key;
+			this.needsBroker = needsBroker;
+			this.task = task;
+		}
+
+		/**
+		 * Claims the validation for the calling thread, if nobody has claimed it.
+		 */
+		private boolean claim() {
+			return claimed.compareAndSet(false, true);
+		}
+
+		/**
+		 * Leaves the validation claimed, to be claimed again.
+		 */
+		private void leave() {
+			claimed.set(false);
+		}
+
+		private void run(final DBBroker broker) {
+			try {
+				outcome.complete(task.validate(broker));
+			} catch (final Exception e) {
+				outcome.completeExceptionally(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digitalSignature;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.xml.crypto.dsig.XMLSignature;
+
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeProxy;
+import org.expath.exist.crypto.digest.DigestEngines;
+import org.expath.exist.crypto.utils.BoundedCache;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Bounded LRU cache of the outcomes of signature validations of nodes stored
+ * in the database, keyed by (document id, document URI, node id, document
+ * last-modified time, fingerprint of the key in the signature's KeyInfo), so
+ * that a signature is canonicalized and verified only once, until its document
+ * is modified. The cache is disabled by default.
+ */
+public final class ValidationCache {
+
+	public static final int DEFAULT_MAX_SIZE = 0;
+	public static final long DEFAULT_TTL = TimeUnit.HOURS.toMillis(1);
+
+	private static final BoundedCache<Boolean> OUTCOMES = new BoundedCache<>(DEFAULT_MAX_SIZE, DEFAULT_TTL, false);
+
+	private ValidationCache() {
+	}
+
+	/**
+	 * Sets the maximum number of cached outcomes (0 disables the cache), and the
+	 * time to live of a cached outcome, in milliseconds (0 means no expiry).
+	 */
+	public static void configure(final int maxSize, final long ttl) {
+		OUTCOMES.configure(maxSize, ttl);
+	}
+
+	public static boolean isEnabled() {
+		return OUTCOMES.isEnabled();
+	}
+
+	/**
+	 * Builds the cache key of a stored node from the metadata of its document,
+	 * and from the key the signature is verified with, without serializing the
+	 * node.
+	 */
+	public static String key(final NodeProxy node) {
+		final DocumentImpl document = node.getOwnerDocument();
+
+		return document.getDocId() + "\u0000" + document.getURI() + '\u0000' + node.getNodeId() + '\u0000'
+				+ document.getMetadata().getLastModified() + '\u0000' + keyFingerprint(node.getNode());
+	}
+
+	/**
+	 * Gets a cached outcome.
+	 *
+	 * @return the outcome, or null if it is not cached, or it has expired.
+	 */
+	@Nullable
+	public static Boolean get(final String key) {
+		return OUTCOMES.get(key);
+	}
+
+	/**
+	 * Caches the outcome for a stored node. The last-modified time has a
+	 * resolution of one millisecond, so the outcome is not cached within the
+	 * millisecond the document was modified in, when it could still be modified
+	 * again without a change of its cache key.
+	 */
+	public static void put(final String key, final NodeProxy node, final boolean valid) {
+		if (System.currentTimeMillis() > node.getOwnerDocument().getMetadata().getLastModified()) {
+			OUTCOMES.put(key, valid);
+		}
+	}
+
+	public static long getHits() {
+		return OUTCOMES.getHits();
+	}
+
+	public static long getMisses() {
+		return OUTCOMES.getMisses();
+	}
+
+	public static int size() {
+		return OUTCOMES.size();
+	}
+
+	public static void clear() {
+		OUTCOMES.clear();
+	}
+
+	/**
+	 * Computes a SHA-256 fingerprint of the names and text of the KeyInfo of the
+	 * signature of a node, which is the node itself, or one of its children, or of
+	 * the children of its document element. Only these nodes are visited.
+	 *
+	 * @return the fingerprint, or an empty string if the node has no such
+	 *         signature, or the signature has no KeyInfo.
+	 */
+	private static String keyFingerprint(final Node node) {
+		final Node element = node instanceof Document ? ((Document) node).getDocumentElement() : node;
+		@Nullable
+		final Node signature = isSignatureElement(element, "Signature") ? element
+				: signatureChild(element, "Signature");
+		@Nullable
+		final Node keyInfo = signature == null ? null : signatureChild(signature, "KeyInfo");
+		if (keyInfo == null) {
+			return "";
+		}
+
+		final MessageDigest sha256 = DigestEngines.messageDigest("SHA-256");
+		update(sha256, keyInfo);
+
+		return Base64.getEncoder().encodeToString(sha256.digest());
+	}
+
+	@Nullable
+	private static Node signatureChild(final Node parent, final String localName) {
+		// the enveloped signature is usually the last child
+		for (Node child = parent.getLastChild(); child != null; child = child.getPreviousSibling()) {
+			if (isSignatureElement(child, localName)) {
+				return child;
+			}
+		}
+
+		return null;
+	}
+
+	private static boolean isSignatureElement(final Node node, final String localName) {
+		return node.getNodeType() == Node.ELEMENT_NODE && XMLSignature.XMLNS.equals(node.getNamespaceURI())
+				&& localName.equals(node.getLocalName());
+	}
+
+	private static void update(final MessageDigest sha256, final Node node) {
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				sha256.update(child.getLocalName().getBytes(UTF_8));
+				sha256.update((byte) 0);
+				update(sha256, child);
+				sha256.update((byte) 0);
+			} else if (child.getNodeType() == Node.TEXT_NODE) {
+				sha256.update(child.getNodeValue().trim().getBytes(UTF_8));
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digitalSignature;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.expath.exist.crypto.utils.WorkerPool;
+
+/**
+ * Bounded executor shared by the batch signature validations, whose
+ * parallelism is set by the module.
+ */
+public final class ValidationExecutor {
+
+	public static final int DEFAULT_PARALLELISM = WorkerPool.DEFAULT_PARALLELISM;
+
+	private static final WorkerPool POOL = new WorkerPool();
+
+	private ValidationExecutor() {
+	}
+
+	/**
+	 * Sets the parallelism level. The pool is replaced only when the level
+	 * changes; the tasks of the old pool are allowed to complete.
+	 */
+	public static void configure(final int parallelism) {
+		POOL.configure(parallelism);
+	}
+
+	public static int getParallelism() {
+		return POOL.getParallelism();
+	}
+
+	static ForkJoinPool pool() {
+		return POOL.pool();
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.digitalSignature;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dom.DOMStructure;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLObject;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.crypto.dsig.spec.XPathFilterParameterSpec;
+import javax.xml.parsers.DocumentBuilder;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import ro.kuberam.libs.java.crypto.CryptoError;
+import ro.kuberam.libs.java.crypto.CryptoException;
+
+/**
+ * Generates enveloped and enveloping XML digital signatures with a given
+ * {@link SigningKey}, using the same algorithm names as
+ * {@link ro.kuberam.libs.java.crypto.digitalSignature.GenerateXmlSignature},
+ * so that the signing key can be loaded once and reused. Detached signatures
+ * are still generated by the crypto library.
+ * <p>
+ * Unlike the crypto library, which falls back to default algorithms for the
+ * names it does not know, unknown names are rejected, for all the signature
+ * types, by {@link #checkAlgorithms(String, String, String)}.
+ * <p>
+ * An enveloping signature holds the signed document in an Object whose Id is
+ * "signed-object", to which its Reference points.
+ */
+public final class XmlSignatureGenerator {
+
+	public static final String ENVELOPED = "enveloped";
+	public static final String ENVELOPING = "enveloping";
+
+	private static final String SIGNED_OBJECT_ID = "signed-object";
+
+	private XmlSignatureGenerator() {
+	}
+
+	/**
+	 * Checks if the signature type is generated by this class. Other types
+	 * (i.e. detached signatures) are generated by the crypto library.
+	 */
+	public static boolean supports(final String signatureType) {
+		return ENVELOPED.equals(signatureType) || ENVELOPING.equals(signatureType);
+	}
+
+	/**
+	 * Checks the canonicalization, digest and signature algorithm names, before
+	 * a document is signed with any signature type.
+	 *
+	 * @throws CryptoException with the CANONICALIZATION_ALGORITHM,
+	 *                         DIGEST_ALGORITHM or SIGNATURE_ALGORITHM error, for
+	 *                         an unknown name
+	 */
+	public static void checkAlgorithms(final String canonicalizationAlgorithm, final String digestAlgorithm,
+			final String signatureAlgorithm) throws CryptoException {
+		canonicalizationAlgorithmUri(canonicalizationAlgorithm);
+		digestAlgorithmUri(digestAlgorithm);
+		signatureAlgorithmUri(signatureAlgorithm);
+	}
+
+	/**
+	 * Signs the document. An enveloped signature is added to the input document,
+	 * which is returned, while an enveloping signature is returned as a new
+	 * document, created with the document builder.
+	 */
+	public static Document sign(final Document inputDoc, final String canonicalizationAlgorithm,
+			final String digestAlgorithm, final String signatureAlgorithm, final String signatureNamespacePrefix,
+			final String signatureType, @Nullable final String xpathExprString, final SigningKey signingKey,
+			final DocumentBuilder documentBuilder)
+			throws CryptoException, GeneralSecurityException, MarshalException, XMLSignatureException {
+		final XMLSignatureFactory sigFactory = XMLSignatureFactory.getInstance("DOM");
+
+		final List<Transform> transforms = new ArrayList<>();
+		if (xpathExprString != null && !xpathExprString.isEmpty()) {
+			transforms.add(sigFactory.newTransform(Transform.XPATH, new XPathFilterParameterSpec(xpathExprString)));
+		}
+
+		final Document signatureDoc;
+		final Node signatureParent;
+		final String referenceUri;
+		final List<XMLObject> objects;
+		if (ENVELOPED.equals(signatureType)) {
+			transforms.add(sigFactory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null));
+			signatureDoc = inputDoc;
+			signatureParent = inputDoc.getDocumentElement();
+			referenceUri = "";
+			objects = null;
+		} else {
+			signatureDoc = documentBuilder.newDocument();
+			signatureParent = signatureDoc;
+			referenceUri = "#" + SIGNED_OBJECT_ID;
+			objects = Collections.singletonList(sigFactory.newXMLObject(
+					Collections.singletonList(
+							new DOMStructure(signatureDoc.importNode(inputDoc.getDocumentElement(), true))),
+					SIGNED_OBJECT_ID, null, null));
+		}
+
+		final Reference reference = sigFactory.newReference(referenceUri,
+				sigFactory.newDigestMethod(digestAlgorithmUri(digestAlgorithm), null), transforms, null, null);
+		final SignedInfo signedInfo = sigFactory.newSignedInfo(
+				sigFactory.newCanonicalizationMethod(canonicalizationAlgorithmUri(canonicalizationAlgorithm),
+						(C14NMethodParameterSpec) null),
+				sigFactory.newSignatureMethod(signatureAlgorithmUri(signatureAlgorithm), null),
+				Collections.singletonList(reference));
+
+		final XMLSignature signature = sigFactory.newXMLSignature(signedInfo, keyInfo(sigFactory, signingKey),
+				objects, null, null);
+
+		final DOMSignContext signContext = new DOMSignContext(signingKey.getPrivateKey(), signatureParent);
+		signContext.setDefaultNamespacePrefix(signatureNamespacePrefix);
+		signature.sign(signContext);
+
+		return signatureDoc;
+	}
+
+	/**
+	 * Gets a key pair for the signature algorithm, e.g. "DSA" for "DSA_SHA1",
+	 * from the {@link KeyPairPool}.
+	 */
+	public static SigningKey generateSigningKey(final String signatureAlgorithm)
+			throws CryptoException, GeneralSecurityException {
+		// the signature algorithm is checked before a key pair is made for it
+		signatureAlgorithmUri(signatureAlgorithm);
+		final String keyPairAlgorithm = signatureAlgorithm.substring(0, signatureAlgorithm.indexOf('_'));
+
+		return new SigningKey(KeyPairPool.keyPair(keyPairAlgorithm, defaultKeySize(keyPairAlgorithm)));
+	}
+
+	public static int defaultKeySize(final String keyPairAlgorithm) {
+		return "DSA".equals(keyPairAlgorithm) ? 512 : 1024;
+	}
+
+	private static KeyInfo keyInfo(final XMLSignatureFactory sigFactory, final SigningKey signingKey)
+			throws GeneralSecurityException {
+		final KeyInfoFactory keyInfoFactory = sigFactory.getKeyInfoFactory();
+
+		if (signingKey.getCertificate() != null) {
+			final List<Object> x509Content = new ArrayList<>();
+			x509Content.add(signingKey.getCertificate().getSubjectX500Principal().getName());
+			x509Content.add(signingKey.getCertificate());
+
+			return keyInfoFactory
+					.newKeyInfo(Collections.singletonList(keyInfoFactory.newX509Data(x509Content)));
+		}
+
+		return keyInfoFactory
+				.newKeyInfo(Collections.singletonList(keyInfoFactory.newKeyValue(signingKey.getPublicKey())));
+	}
+
+	private static String canonicalizationAlgorithmUri(final String canonicalizationAlgorithm)
+			throws CryptoException {
+		switch (canonicalizationAlgorithm) {
+		case "exclusive":
+			return CanonicalizationMethod.EXCLUSIVE;
+		case "exclusive-with-comments":
+			return CanonicalizationMethod.EXCLUSIVE_WITH_COMMENTS;
+		case "inclusive":
+			return CanonicalizationMethod.INCLUSIVE;
+		case "inclusive-with-comments":
+			return CanonicalizationMethod.INCLUSIVE_WITH_COMMENTS;
+		default:
+			throw new CryptoException(CryptoError.CANONICALIZATION_ALGORITHM);
+		}
+	}
+
+	private static String digestAlgorithmUri(final String digestAlgorithm) throws CryptoException {
+		switch (digestAlgorithm) {
+		case "SHA1":
+			return DigestMethod.SHA1;
+		case "SHA256":
+			return DigestMethod.SHA256;
+		case "SHA384":
+			return "http://www.w3.org/2001/04/xmldsig-more#sha384";
+		case "SHA512":
+			return DigestMethod.SHA512;
+		default:
+			throw new CryptoException(CryptoError.DIGEST_ALGORITHM);
+		}
+	}
+
+	private static String signatureAlgorithmUri(final String signatureAlgorithm) throws CryptoException {
+		switch (signatureAlgorithm) {
+		case "DSA_SHA1":
+			return SignatureMethod.DSA_SHA1;
+		case "DSA_SHA256":
+			return "http://www.w3.org/2009/xmldsig11#dsa-sha256";
+		case "RSA_SHA1":
+			return SignatureMethod.RSA_SHA1;
+		case "RSA_SHA256":
+			return "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+		case "RSA_SHA384":
+			return "http://www.w3.org/2001/04/xmldsig-more#rsa-sha384";
+		case "RSA_SHA512":
+			return "http://www.w3.org/2001/04/xmldsig-more#rsa-sha512";
+		default:
+			throw new CryptoException(CryptoError.SIGNATURE_ALGORITHM);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.encrypt;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.expath.exist.crypto.digest.DigestEngines;
+import org.expath.exist.crypto.utils.BoundedCache;
+
+/**
+ * Creates the {@link Cipher}s used by the streaming encryption and decryption,
+ * with the same key and initialization vector handling as
+ * {@link ro.kuberam.libs.java.crypto.encrypt.SymmetricEncryption}.
+ *
+ * <p>
+ * The {@link Cipher}s are cached per thread, keyed by (transformation,
+ * provider), and the key specs in a bounded cache shared by the threads, keyed
+ * by a fingerprint of (key algorithm, secret key), so that a call only
+ * re-initialises a cached {@link Cipher} with its key and initialization
+ * vector. A {@link Cipher} returned by this class can be used until the next
+ * call on the same thread.
+ * </p>
+ *
+ * <p>
+ * The {@link Cipher}s of authenticated modes (GCM, CCM, ChaCha20-Poly1305) are
+ * not cached: such a {@link Cipher} refuses to encrypt again with the key and
+ * initialization vector it was last initialised with, so a cached one would
+ * make the outcome of a call depend on the thread running it. As with
+ * {@link ro.kuberam.libs.java.crypto.encrypt.SymmetricEncryption}, the caller
+ * is responsible for never reusing an initialization vector with a key.
+ * </p>
+ */
+public final class Ciphers {
+
+	public static final int DEFAULT_MAX_SIZE = 16;
+	public static final long KEY_SPEC_TTL = TimeUnit.HOURS.toMillis(1);
+
+	private static final int GCM_TAG_LENGTH = 128;
+
+	private static volatile int maxSize = DEFAULT_MAX_SIZE;
+
+	private static final ThreadLocal<Map<String, Cipher>> CIPHERS = ThreadLocal.withInitial(Ciphers::newCache);
+	private static final BoundedCache<SecretKeySpec> KEY_SPECS = new BoundedCache<>(DEFAULT_MAX_SIZE, KEY_SPEC_TTL,
+			false);
+
+	private Ciphers() {
+	}
+
+	/**
+	 * Sets the maximum number of {@link Cipher}s cached per thread, and of cached
+	 * key specs, 0 disabling the caches. Larger caches of {@link Cipher}s are
+	 * trimmed on their next use.
+	 */
+	public static void configure(final int maxSize) {
+		Ciphers.maxSize = Math.max(0, maxSize);
+		KEY_SPECS.configure(maxSize, KEY_SPEC_TTL);
+	}
+
+	/**
+	 * Gets a symmetric {@link Cipher}, initialised for the given mode.
+	 *
+	 * @param mode           {@link Cipher#ENCRYPT_MODE} or
+	 *                       {@link Cipher#DECRYPT_MODE}
+	 * @param secretKey      the secret key, as string
+	 * @param transformation the transformation, e.g. "AES/CBC/PKCS5Padding"
+	 * @param iv             the initialization vector, Base64 encoded
+	 * @param provider       the cryptographic provider, or null or empty for the
+	 *                       default one
+	 */
+	public static Cipher symmetric(final int mode, final String secretKey, final String transformation,
+			@Nullable final String iv, @Nullable final String provider) throws GeneralSecurityException {
+		final SecretKeySpec keySpec = keySpec(secretKey, keyAlgorithm(transformation));
+		@Nullable
+		final AlgorithmParameterSpec ivSpec = iv == null ? null
+				: parameterSpec(transformation, Base64.getDecoder().decode(iv));
+
+		final Cipher cipher = isAuthenticated(transformation) ? newCipher(transformation, provider)
+				: cached(transformation, provider);
+		init(cipher, mode, keySpec, ivSpec);
+
+		return cipher;
+	}
+
+	/**
+	 * Gets the {@link Cipher} for a transformation and provider cached for the
+	 * current thread, which has to be initialised before use.
+	 *
+	 * @param provider the cryptographic provider, or null or empty for the
+	 *                 default one
+	 */
+	public static Cipher cached(final String transformation, @Nullable final String provider)
+			throws GeneralSecurityException {
+		final Map<String, Cipher> ciphers = CIPHERS.get();
+		final String cacheKey = cacheKey(transformation, provider);
+
+		Cipher cipher = ciphers.get(cacheKey);
+		if (cipher == null) {
+			cipher = newCipher(transformation, provider);
+			ciphers.put(cacheKey, cipher);
+		}
+
+		return cipher;
+	}
+
+	/**
+	 * Gets the key spec of a secret key, given as string, from the cache.
+	 */
+	static SecretKeySpec keySpec(final String secretKey, final String keyAlgorithm) {
+		if (!KEY_SPECS.isEnabled()) {
+			return new SecretKeySpec(secretKey.getBytes(UTF_8), keyAlgorithm);
+		}
+
+		final byte[] key = secretKey.getBytes(UTF_8);
+		final String fingerprint = keyAlgorithm + "/"
+				+ Base64.getEncoder().encodeToString(DigestEngines.messageDigest("SHA-256").digest(key));
+
+		SecretKeySpec keySpec = KEY_SPECS.get(fingerprint);
+		if (keySpec == null) {
+			keySpec = new SecretKeySpec(key, keyAlgorithm);
+			KEY_SPECS.put(fingerprint, keySpec);
+		}
+
+		return keySpec;
+	}
+
+	/**
+	 * Gets the key algorithm of a transformation, e.g. "AES" for
+	 * "AES/CBC/PKCS5Padding".
+	 */
+	static String keyAlgorithm(final String transformation) {
+		final int separatorIndex = transformation.indexOf('/');
+
+		return separatorIndex == -1 ? transformation : transformation.substring(0, separatorIndex);
+	}
+
+	/**
+	 * Gets the mode of a transformation, e.g. "CBC" for "AES/CBC/PKCS5Padding", or
+	 * an empty string if it has none.
+	 */
+	static String mode(final String transformation) {
+		final String[] parts = transformation.split("/");
+
+		return parts.length > 1 ? parts[1].toUpperCase(Locale.ROOT) : "";
+	}
+
+	/**
+	 * Tells if a transformation is an authenticated encryption, whose
+	 * {@link Cipher} guards against the reuse of a key and initialization vector.
+	 */
+	static boolean isAuthenticated(final String transformation) {
+		final String mode = mode(transformation);
+
+		return mode.equals("GCM") || mode.equals("CCM")
+				|| keyAlgorithm(transformation).equalsIgnoreCase("ChaCha20-Poly1305");
+	}
+
+	/**
+	 * Builds the parameters of an initialization vector, those of GCM also taking
+	 * the length of its authentication tag, of 128 bits.
+	 */
+	private static AlgorithmParameterSpec parameterSpec(final String transformation, final byte[] iv) {
+		return mode(transformation).equals("GCM") ? new GCMParameterSpec(GCM_TAG_LENGTH, iv) : new IvParameterSpec(iv);
+	}
+
+	private static void init(final Cipher cipher, final int mode, final SecretKeySpec keySpec,
+			@Nullable final AlgorithmParameterSpec ivSpec) throws GeneralSecurityException {
+		if (ivSpec == null) {
+			cipher.init(mode, keySpec);
+		} else {
+			cipher.init(mode, keySpec, ivSpec);
+		}
+	}
+
+	private static Cipher newCipher(final String transformation, @Nullable final String provider)
+			throws GeneralSecurityException {
+		return provider == null || provider.isEmpty() ? Cipher.getInstance(transformation)
+				: Cipher.getInstance(transformation, provider);
+	}
+
+	private static String cacheKey(final String transformation, @Nullable final String provider) {
+		return provider == null || provider.isEmpty() ? transformation : transformation + '\u0000' + provider;
+	}
+
+	private static <V> Map<String, V> newCache() {
+		return new LinkedHashMap<String, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, V> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+}
@@ -0,0 +1,184 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.encrypt;
+
+import static org.exist.xquery.FunctionDSL.arities;
+import static org.exist.xquery.FunctionDSL.arity;
+import static org.exist.xquery.FunctionDSL.optParam;
+import static org.exist.xquery.FunctionDSL.param;
+import static org.exist.xquery.FunctionDSL.returns;
+import static org.expath.exist.crypto.ExistExpathCryptoModule.functionSignatures;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+
+import javax.annotation.Nullable;
+
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.lock.Lock;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.ErrorCodes.ErrorCode;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.FunctionParameterSequenceType;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.Type;
+import org.expath.exist.crypto.EXpathCryptoException;
+import org.expath.exist.crypto.ExpathCryptoErrorCode;
+import org.expath.exist.crypto.ModuleProperties;
+import org.expath.exist.crypto.digest.HashResourceFunction;
+import org.expath.exist.crypto.metrics.CryptoMetrics;
+import org.expath.exist.crypto.metrics.FunctionMetrics;
+import org.expath.exist.crypto.utils.CountingInputStream;
+import org.expath.exist.crypto.utils.SpillingOutputStream;
+
+/**
+ * Implements the crypto:decrypt-range() function for eXist, which decrypts,
+ * and authenticates, only the segments of data encrypted with
+ * {@link SegmentedEncryption} that cover a byte range of the decrypted data.
+ */
+public class DecryptRangeFunction extends BasicFunction {
+
+	public final static ErrorCode INVALID_RANGE = new ExpathCryptoErrorCode("INVALID_RANGE",
+			"The offset and the length of the range must not be negative.");
+
+	private static final String FS_DECRYPT_RANGE_NAME = "decrypt-range";
+	private static final FunctionParameterSequenceType FS_DECRYPT_RANGE_PARAM_DATA = param("data", Type.ITEM,
+			"The data encrypted with the 'AES-GCM-SEGMENTED' algorithm, as xs:base64Binary or xs:hexBinary, or the database URI of a binary resource containing it, whose segments before the range are then skipped without being read.");
+	private static final FunctionParameterSequenceType FS_DECRYPT_RANGE_PARAM_OFFSET = param("offset", Type.INTEGER,
+			"The offset of the range in the decrypted data, starting from 0.");
+	private static final FunctionParameterSequenceType FS_DECRYPT_RANGE_PARAM_LENGTH = param("length", Type.INTEGER,
+			"The length of the range, in bytes. A range extending beyond the end of the data is truncated.");
+	private static final FunctionParameterSequenceType FS_DECRYPT_RANGE_PARAM_SECRET_KEY = param("secret-key",
+			Type.STRING, "The secret key used for encryption, as string.");
+
+	public static final FunctionSignature FS_DECRYPT_RANGE[] = functionSignatures(FS_DECRYPT_RANGE_NAME,
+			"Decrypts a byte range of data encrypted with the 'AES-GCM-SEGMENTED' algorithm, by decrypting and authenticating only the segments covering it.",
+			returns(Type.BASE64_BINARY, "the decrypted range, as xs:base64Binary."),
+			arities(arity(FS_DECRYPT_RANGE_PARAM_DATA, FS_DECRYPT_RANGE_PARAM_OFFSET, FS_DECRYPT_RANGE_PARAM_LENGTH,
+					FS_DECRYPT_RANGE_PARAM_SECRET_KEY),
+					arity(FS_DECRYPT_RANGE_PARAM_DATA, FS_DECRYPT_RANGE_PARAM_OFFSET, FS_DECRYPT_RANGE_PARAM_LENGTH,
+							FS_DECRYPT_RANGE_PARAM_SECRET_KEY,
+							optParam("provider", Type.STRING,
+									"The cryptographic provider (the default is the one set in the module's configuration, if any)."))));
+
+	public DecryptRangeFunction(final XQueryContext context, final FunctionSignature signature) {
+		super(context, signature);
+	}
+
+	@Override
+	public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+		final FunctionMetrics metrics = CryptoMetrics.metrics(FS_DECRYPT_RANGE_NAME, SegmentedEncryption.ALGORITHM);
+		final long startTime = System.nanoTime();
+		boolean failed = true;
+		try {
+			final Sequence result = decryptRange(args, metrics);
+			failed = false;
+
+			return result;
+		} finally {
+			metrics.record(startTime, failed);
+		}
+	}
+
+	private Sequence decryptRange(final Sequence[] args, final FunctionMetrics metrics) throws XPathException {
+		final Item data = args[0].itemAt(0);
+		final long offset = ((IntegerValue) args[1].itemAt(0)).getLong();
+		final long length = ((IntegerValue) args[2].itemAt(0)).getLong();
+		final String secretKey = args[3].getStringValue();
+		@Nullable
+		final String provider = args.length == 5 && !args[4].isEmpty() ? args[4].getStringValue()
+				: ModuleProperties.get().getDefaultProvider();
+
+		if (offset < 0 || length < 0) {
+			throw new EXpathCryptoException(this, INVALID_RANGE, INVALID_RANGE.getDescription());
+		}
+
+		if (data.getType() == Type.BASE64_BINARY || data.getType() == Type.HEX_BINARY) {
+			try (final InputStream is = ((BinaryValue) data).getInputStream()) {
+				return decryptRange(is, -1, offset, length, secretKey, provider, metrics);
+			} catch (final IOException e) {
+				throw new EXpathCryptoException(this, e);
+			}
+		}
+
+		final String resourceUri = data.getStringValue();
+		DocumentImpl resource = null;
+		try {
+			resource = context.getBroker().getXMLResource(XmldbURI.xmldbUriFor(resourceUri), Lock.LockMode.READ_LOCK);
+			if (resource == null || resource.getResourceType() != DocumentImpl.BINARY_FILE) {
+				throw new EXpathCryptoException(this, HashResourceFunction.NO_BINARY_RESOURCE,
+						HashResourceFunction.NO_BINARY_RESOURCE.getDescription() + " URI: " + resourceUri);
+			}
+
+			// a file stream skips by seeking
+			final Path file = context.getBroker().getBinaryFile((BinaryDocument) resource);
+			try (final InputStream is = new FileInputStream(file.toFile())) {
+				return decryptRange(is, Files.size(file), offset, length, secretKey, provider, metrics);
+			}
+		} catch (final URISyntaxException | PermissionDeniedException | IOException e) {
+			throw new EXpathCryptoException(this, e);
+		} finally {
+			if (resource != null) {
+				resource.getUpdateLock().release(Lock.LockMode.READ_LOCK);
+			}
+		}
+	}
+
+	/**
+	 * Decrypts the range into a binary result, from data whose size is -1 if it
+	 * is not known. The bytes of the data read, or skipped, are added to the
+	 * metrics of the call.
+	 */
+	private Sequence decryptRange(final InputStream is, final long size, final long offset, final long length,
+			final String secretKey, @Nullable final String provider, final FunctionMetrics metrics)
+			throws XPathException {
+		final CountingInputStream data = new CountingInputStream(is);
+		try {
+			final SpillingOutputStream result = new SpillingOutputStream(
+					ModuleProperties.get().getBinarySpillThreshold());
+			try (final OutputStream os = result) {
+				SegmentedEncryption.decryptRange(data, size, os, offset, length, secretKey, provider);
+			} catch (final GeneralSecurityException | IOException | RuntimeException e) {
+				result.discard();
+				throw e;
+			}
+
+			return result.toBinaryValue(context);
+		} catch (final GeneralSecurityException | IOException e) {
+			throw new EXpathCryptoException(this, e);
+		} finally {
+			metrics.addBytes(data.getCount());
+		}
+	}
+}
@@ -19,35 +19,55 @@
  */
 package org.expath.exist.crypto.encrypt;
 
+import static org.exist.xquery.FunctionDSL.arities;
+import static org.exist.xquery.FunctionDSL.arity;
 import static org.exist.xquery.FunctionDSL.optParam;
 import static org.exist.xquery.FunctionDSL.param;
 import static org.exist.xquery.FunctionDSL.returns;
-import static org.expath.exist.crypto.ExistExpathCryptoModule.functionSignature;
+import static org.expath.exist.crypto.ExistExpathCryptoModule.functionSignatures;
 
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
 import java.util.Base64;
 
 import javax.annotation.Nullable;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.xquery.BasicFunction;
+import org.exist.xquery.ErrorCodes.ErrorCode;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.BinaryValue;
 import org.exist.xquery.value.FunctionParameterSequenceType;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.StringValue;
 import org.exist.xquery.value.Type;
 import org.expath.exist.crypto.EXpathCryptoException;
 import org.expath.exist.crypto.ExistExpathCryptoModule;
+import org.expath.exist.crypto.ExpathCryptoErrorCode;
+import org.expath.exist.crypto.ModuleProperties;
+import org.expath.exist.crypto.metrics.CryptoMetrics;
+import org.expath.exist.crypto.metrics.FunctionMetrics;
+import org.expath.exist.crypto.utils.CharSequenceInputStream;
 import org.expath.exist.crypto.utils.Conversion;
+import org.expath.exist.crypto.utils.CountingInputStream;
+import org.expath.exist.crypto.utils.SpillingOutputStream;
 
 import ro.kuberam.libs.java.crypto.CryptoError;
-import ro.kuberam.libs.java.crypto.CryptoException;
-import ro.kuberam.libs.java.crypto.encrypt.SymmetricEncryption;
 
 /**
  * @author <a href="mailto:claudius.teodorescu@gmail.com">Claudius
@@ -60,29 +80,50 @@ public class EncryptionFunctions extends BasicFunction {
 	private static final String FS_ENCRYPT_NAME = "encrypt";
 	private static final String FS_DECRYPT_NAME = "decrypt";
 	private static final FunctionParameterSequenceType FS_ENCRYPT_PARAM_DATA = param("data", Type.ATOMIC,
-			"The data to be encrypted or decrypted. This parameter can be of type xs:string, xs:base64Binary, or xs:hexBinary.");
+			"The data to be encrypted or decrypted. This parameter can be of type xs:string, xs:base64Binary, or xs:hexBinary. Binary data is processed as a stream.");
+	private static final FunctionParameterSequenceType FS_ENCRYPT_PARAM_ENCRYPTION_TYPE = param("encryption-type",
+			Type.STRING, "The type of encryption. Legal values: 'symmetric', and 'asymmetric'.");
 	private static final FunctionParameterSequenceType FS_ENCRYPT_PARAM_SECRET_KEY = param("secret-key", Type.STRING,
-			"The secret key used for encryption or decryption, as string.");
+			"The secret key used for encryption or decryption, as string. For asymmetric encryption, this is the public key of the recipient (Base64 or PEM encoded X.509 SubjectPublicKeyInfo), and for asymmetric decryption its private key (Base64 or PEM encoded PKCS#8).");
 	private static final FunctionParameterSequenceType FS_ENCRYPT_PARAM_CRYPTOGRAPHIC_ALGORITHM = param("algorithm",
-			Type.STRING, "The cryptographic algorithm used for encryption or decryption.");
+			Type.STRING,
+			"The cryptographic algorithm used for encryption or decryption. For asymmetric encryption, this is the algorithm of the key, 'RSA' or 'EC', and the data is encrypted with a random AES-256 key in GCM mode, which is encrypted with the key of the recipient. For symmetric encryption, 'AES-GCM-SEGMENTED' encrypts the data in authenticated segments, in parallel.");
 	private static final FunctionParameterSequenceType FS_ENCRYPT_PARAM_IV = optParam("iv", Type.STRING,
-			"The initialization vector.");
+			"The initialization vector. It is not used for asymmetric encryption, for which a random nonce is generated for each message.");
 	private static final FunctionParameterSequenceType FS_ENCRYPT_PARAM_PROVIDER = optParam("provider", Type.STRING,
-			"The cryptographic provider.");
-
-	public final static FunctionSignature FS_ENCRYPT = functionSignature(FS_ENCRYPT_NAME, "Encrypts the input string.",
-			returns(Type.STRING, "the encrypted data."), FS_ENCRYPT_PARAM_DATA,
-			param("encryption-type", Type.STRING,
-					"The type of encryption. Legal values: 'symmetric', and 'asymmetric'."),
-			FS_ENCRYPT_PARAM_SECRET_KEY, FS_ENCRYPT_PARAM_CRYPTOGRAPHIC_ALGORITHM, FS_ENCRYPT_PARAM_IV,
-			FS_ENCRYPT_PARAM_PROVIDER);
-
-	public final static FunctionSignature FS_DECRYPT = functionSignature(FS_DECRYPT_NAME, "Decrypts the input string.",
-			returns(Type.STRING, "the decrypted data."), FS_ENCRYPT_PARAM_DATA,
-			param("decryption-type", Type.STRING,
-					"The type of decryption. Legal values: 'symmetric', and 'asymmetric'."),
-			FS_ENCRYPT_PARAM_SECRET_KEY, FS_ENCRYPT_PARAM_CRYPTOGRAPHIC_ALGORITHM, FS_ENCRYPT_PARAM_IV,
-			FS_ENCRYPT_PARAM_PROVIDER);
+			"The cryptographic provider (the default is the one set in the module's configuration, if any).");
+	private static final FunctionParameterSequenceType FS_ENCRYPT_PARAM_OUTPUT_TYPE = optParam("output-type",
+			Type.STRING,
+			"The type of the encrypted data. Legal values: 'string', for a Base64 encoded xs:string, and 'binary', for an xs:base64Binary. The default value is 'string'.");
+	private static final FunctionParameterSequenceType FS_DECRYPT_PARAM_DATA = param("data", Type.ATOMIC,
+			"The data to be decrypted. This parameter can be of type xs:string (Base64 encoded), xs:base64Binary, or xs:hexBinary. The data is decrypted as a stream.");
+	private static final FunctionParameterSequenceType FS_DECRYPT_PARAM_DECRYPTION_TYPE = param("decryption-type",
+			Type.STRING, "The type of decryption. Legal values: 'symmetric', and 'asymmetric'.");
+	private static final FunctionParameterSequenceType FS_DECRYPT_PARAM_OUTPUT_TYPE = optParam("output-type",
+			Type.STRING,
+			"The type of the decrypted data. Legal values: 'string', and 'binary'. The default value is 'string'.");
+
+	public final static ErrorCode OUTPUT_TYPE = new ExpathCryptoErrorCode("OUTPUT_TYPE",
+			"The output type must be 'string' or 'binary'.");
+
+	public final static FunctionSignature FS_ENCRYPT[] = functionSignatures(FS_ENCRYPT_NAME,
+			"Encrypts the input data.",
+			returns(Type.ATOMIC,
+					"the encrypted data, as xs:string (Base64 encoded) or as xs:base64Binary, according to the output type."),
+			arities(arity(FS_ENCRYPT_PARAM_DATA, FS_ENCRYPT_PARAM_ENCRYPTION_TYPE, FS_ENCRYPT_PARAM_SECRET_KEY,
+					FS_ENCRYPT_PARAM_CRYPTOGRAPHIC_ALGORITHM, FS_ENCRYPT_PARAM_IV, FS_ENCRYPT_PARAM_PROVIDER),
+					arity(FS_ENCRYPT_PARAM_DATA, FS_ENCRYPT_PARAM_ENCRYPTION_TYPE, FS_ENCRYPT_PARAM_SECRET_KEY,
+							FS_ENCRYPT_PARAM_CRYPTOGRAPHIC_ALGORITHM, FS_ENCRYPT_PARAM_IV, FS_ENCRYPT_PARAM_PROVIDER,
+							FS_ENCRYPT_PARAM_OUTPUT_TYPE)));
+
+	public final static FunctionSignature FS_DECRYPT[] = functionSignatures(FS_DECRYPT_NAME,
+			"Decrypts the input data.",
+			returns(Type.ATOMIC, "the decrypted data, as xs:string or as xs:base64Binary, according to the output type."),
+			arities(arity(FS_DECRYPT_PARAM_DATA, FS_DECRYPT_PARAM_DECRYPTION_TYPE, FS_ENCRYPT_PARAM_SECRET_KEY,
+					FS_ENCRYPT_PARAM_CRYPTOGRAPHIC_ALGORITHM, FS_ENCRYPT_PARAM_IV, FS_ENCRYPT_PARAM_PROVIDER),
+					arity(FS_DECRYPT_PARAM_DATA, FS_DECRYPT_PARAM_DECRYPTION_TYPE, FS_ENCRYPT_PARAM_SECRET_KEY,
+							FS_ENCRYPT_PARAM_CRYPTOGRAPHIC_ALGORITHM, FS_ENCRYPT_PARAM_IV, FS_ENCRYPT_PARAM_PROVIDER,
+							FS_DECRYPT_PARAM_OUTPUT_TYPE)));
 
 	public EncryptionFunctions(final XQueryContext context, final FunctionSignature signature) {
 		super(context, signature);
@@ -90,6 +131,20 @@ public class EncryptionFunctions extends BasicFunction {
 
 	@Override
 	public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+		final FunctionMetrics metrics = CryptoMetrics.metrics(getName().getLocalPart(), args[3].getStringValue());
+		final long startTime = System.nanoTime();
+		boolean failed = true;
+		try {
+			final Sequence result = crypt(args, metrics);
+			failed = false;
+
+			return result;
+		} finally {
+			metrics.record(startTime, failed);
+		}
+	}
+
+	private Sequence crypt(final Sequence[] args, final FunctionMetrics metrics) throws XPathException {
 		byte[] data;
 		final CryptType cryptType = CryptType.valueOf(args[1].getStringValue().toUpperCase());
 		final String secretKey = args[2].getStringValue();
@@ -97,20 +152,71 @@ public class EncryptionFunctions extends BasicFunction {
 		@Nullable
 		final String iv = args.length >= 5 && !args[4].isEmpty() ? args[4].getStringValue() : null;
 		@Nullable
-		final String provider = args.length >= 6 && !args[5].isEmpty() ? args[5].getStringValue() : null;
+		final String provider = args.length >= 6 && !args[5].isEmpty() ? args[5].getStringValue()
+				: ModuleProperties.get().getDefaultProvider();
+		final boolean binaryOutput = isBinaryOutput(
+				args.length >= 7 && !args[6].isEmpty() ? args[6].getStringValue() : null);
 
 		switch (getName().getLocalPart()) {
 		case FS_ENCRYPT_NAME:
+			if (cryptType == CryptType.ASYMMETRIC || SegmentedEncryption.supports(algorithm) || isBinary(args[0])
+					|| binaryOutput) {
+				try (final InputStream is = isBinary(args[0]) ? ((BinaryValue) args[0].itemAt(0)).getInputStream()
+						: new ByteArrayInputStream(Conversion.toByteArray(Conversion.sequence2javaTypes(args[0])))) {
+					final CryptOperation operation;
+					if (cryptType == CryptType.ASYMMETRIC) {
+						operation = (in, out) -> HybridEncryption.seal(in, out, secretKey, algorithm, provider);
+					} else if (SegmentedEncryption.supports(algorithm)) {
+						operation = (in, out) -> SegmentedEncryption.encrypt(in, out, secretKey, provider);
+					} else {
+						operation = (in, out) -> transform(
+								Ciphers.symmetric(Cipher.ENCRYPT_MODE, secretKey, algorithm, iv, provider), in, out);
+					}
+
+					return crypt(is, operation, binaryOutput ? ResultType.BINARY : ResultType.BASE64, metrics);
+				} catch (GeneralSecurityException | IllegalArgumentException e) {
+					throw cryptoError(e);
+				} catch (IOException e) {
+					throw new EXpathCryptoException(this, e);
+				}
+			}
+
 			try {
 				data = Conversion.toByteArray(Conversion.sequence2javaTypes(args[0]));
 			} catch (IOException e) {
 				throw new EXpathCryptoException(this, e);
 			}
+			metrics.addBytes(data.length);
 			return encrypt(data, cryptType, secretKey, algorithm, iv, provider);
 
 		case FS_DECRYPT_NAME:
-			data = Base64.getDecoder().decode(args[0].itemAt(0).getStringValue());
-			return decrypt(data, cryptType, secretKey, algorithm, iv, provider);
+			final boolean binaryInput = isBinary(args[0]);
+			final ResultType resultType = binaryOutput ? ResultType.BINARY : ResultType.STRING;
+
+			try (final InputStream is = binaryInput ? ((BinaryValue) args[0].itemAt(0)).getInputStream()
+					: Base64.getDecoder().wrap(new CharSequenceInputStream(args[0].itemAt(0).getStringValue()))) {
+				switch (cryptType) {
+				case SYMMETRIC:
+					if (SegmentedEncryption.supports(algorithm)) {
+						return crypt(is, (in, out) -> SegmentedEncryption.decrypt(in, out, secretKey, provider),
+								resultType, metrics);
+					}
+					return crypt(is, (in, out) -> transform(
+							Ciphers.symmetric(Cipher.DECRYPT_MODE, secretKey, algorithm, iv, provider), in, out),
+							resultType, metrics);
+
+				case ASYMMETRIC:
+					return crypt(is, (in, out) -> HybridEncryption.open(in, out, secretKey, algorithm, provider),
+							resultType, metrics);
+
+				default:
+					throw new EXpathCryptoException(this, CryptoError.DECRYPTION_TYPE);
+				}
+			} catch (GeneralSecurityException | IllegalArgumentException e) {
+				throw cryptoError(e);
+			} catch (IOException e) {
+				throw new EXpathCryptoException(this, e);
+			}
 
 		default:
 			throw new EXpathCryptoException(this, ExistExpathCryptoModule.NO_FUNCTION,
@@ -120,73 +226,143 @@ public class EncryptionFunctions extends BasicFunction {
 
 	private Sequence encrypt(byte[] data, CryptType encryptType, String secretKey, String algorithm,
 			@Nullable String iv, @Nullable String provider) throws XPathException {
-		try {
-			byte[] resultBytes = null;
+		byte[] resultBytes = null;
 
-			switch (encryptType) {
-			case SYMMETRIC:
-				resultBytes = SymmetricEncryption.encrypt(data, secretKey, algorithm, iv, provider);
-				break;
+		switch (encryptType) {
+		case SYMMETRIC:
+			try {
+				resultBytes = Ciphers.symmetric(Cipher.ENCRYPT_MODE, secretKey, algorithm, iv, provider)
+						.doFinal(data);
+			} catch (GeneralSecurityException | IllegalArgumentException e) {
+				throw cryptoError(e);
+			}
+			break;
 
-			case ASYMMETRIC:
-				// encrypted = AsymmetricEncryption.encrypt(is, secretKey, algorithm);
-				break;
+		default:
+			throw new EXpathCryptoException(this, CryptoError.ENCRYPTION_TYPE);
+		}
+		String result = Base64.getEncoder().encodeToString(resultBytes);
+		LOG.debug("encrypt result = {}", () -> result);
 
-			default:
-				throw new EXpathCryptoException(this, CryptoError.ENCRYPTION_TYPE);
-			}
-			String result = Base64.getEncoder().encodeToString(resultBytes);
-			LOG.debug("encrypt result = {}", () -> result);
+		return new StringValue(result);
+	}
+
+	/**
+	 * Maps a failure of the cipher to the error the library reports for it, e.g.
+	 * err:CX19 for an invalid secret key, whether encrypting or decrypting. The
+	 * failures which have no such error, such as a bad padding, are reported as
+	 * they are.
+	 */
+	private EXpathCryptoException cryptoError(final Exception e) {
+		@Nullable
+		final CryptoError cryptoError;
+		if (e instanceof InvalidKeyException || e instanceof InvalidKeySpecException) {
+			cryptoError = CryptoError.INVALID_CRYPTO_KEY;
+		} else if (e instanceof NoSuchAlgorithmException || e instanceof NoSuchPaddingException) {
+			cryptoError = CryptoError.NoSuchAlgorithmException;
+		} else {
+			cryptoError = null;
+		}
 
-			return new StringValue(result);
-		} catch (
+		return cryptoError == null ? new EXpathCryptoException(this, e) : new EXpathCryptoException(this, cryptoError);
+	}
 
-		CryptoException e) {
-			throw new EXpathCryptoException(this, e.getCryptoError());
-		} catch (IOException e) {
-			throw new EXpathCryptoException(this, e);
+	private static boolean isBinary(final Sequence data) throws XPathException {
+		if (data.getItemCount() != 1) {
+			return false;
 		}
+
+		final int itemType = data.itemAt(0).getType();
+
+		return itemType == Type.BASE64_BINARY || itemType == Type.HEX_BINARY;
 	}
 
-	private Sequence decrypt(byte[] data, CryptType decryptType, String secretKey, String algorithm,
-			@Nullable String iv, @Nullable String provider) throws XPathException {
+	private boolean isBinaryOutput(@Nullable final String outputType) throws XPathException {
+		if (outputType == null) {
+			return false;
+		}
+
+		switch (outputType) {
+		case "binary":
+			return true;
+
+		case "string":
+			return false;
+
+		default:
+			throw new EXpathCryptoException(this, OUTPUT_TYPE, OUTPUT_TYPE.getDescription());
+		}
+	}
+
+	/**
+	 * Encrypts or decrypts the data as a stream, in chunks. A binary result is
+	 * written into a temporary file, beyond the spill threshold of the module, and
+	 * a string result is decoded as UTF-8, or encoded as Base64, straight from the
+	 * buffer it is written into, so that the data is never held in memory more
+	 * than twice. The bytes read are added to the metrics of the call.
+	 */
+	private Sequence crypt(final InputStream is, final CryptOperation operation, final ResultType resultType,
+			final FunctionMetrics metrics) throws GeneralSecurityException, XPathException {
+		final CountingInputStream data = new CountingInputStream(is);
 		try {
-			byte[] resultBytes = null;
+			switch (resultType) {
+			case BINARY:
+				final SpillingOutputStream result = new SpillingOutputStream(
+						ModuleProperties.get().getBinarySpillThreshold());
+				try (final OutputStream os = result) {
+					operation.apply(data, os);
+				} catch (GeneralSecurityException | IOException | RuntimeException e) {
+					result.discard();
+					throw e;
+				}
 
-			switch (decryptType) {
-			case SYMMETRIC:
-				resultBytes = SymmetricEncryption.decrypt(data, secretKey, algorithm, iv, provider);
-				break;
+				return result.toBinaryValue(context);
 
-			case ASYMMETRIC:
-				// decrypted = AsymmetricEncryption.decrypt(is, secretKey, algorithm, iv,
-				// provider);
-				break;
+			case BASE64:
+				final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+				try (final OutputStream os = Base64.getEncoder().wrap(encoded)) {
+					operation.apply(data, os);
+				}
 
-			default:
-				throw new EXpathCryptoException(this, CryptoError.DECRYPTION_TYPE);
-			}
+				return new StringValue(encoded.toString(US_ASCII.name()));
 
-			String result = new String(resultBytes, UTF_8);
-			LOG.debug("decrypt result = {}", () -> result);
+			default:
+				final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				operation.apply(data, baos);
 
-			return new StringValue(result);
-		} catch (CryptoException e) {
-			throw new EXpathCryptoException(this, e.getCryptoError());
+				return new StringValue(baos.toString(UTF_8.name()));
+			}
 		} catch (IOException e) {
 			throw new EXpathCryptoException(this, e);
+		} finally {
+			metrics.addBytes(data.getCount());
 		}
 	}
 
+	private static void transform(final Cipher cipher, final InputStream is, final OutputStream os)
+			throws GeneralSecurityException, IOException {
+		final byte[] buf = new byte[ModuleProperties.get().getStreamChunkSize()];
+		final byte[] resultBuf = new byte[cipher.getOutputSize(buf.length)];
+		int read = -1;
+		while ((read = is.read(buf)) > -1) {
+			os.write(resultBuf, 0, cipher.update(buf, 0, read, resultBuf));
+		}
+		os.write(cipher.doFinal());
+	}
+
 	private enum CryptType {
 		SYMMETRIC, ASYMMETRIC
 	}
-}
 
-// ByteArrayOutputStream resultBaos = new ByteArrayOutputStream();
-// final byte[] buf = new byte[Buffer.TRANSFER_SIZE];
-// int read = -1;
-// while ((read = input.read(buf)) > -1) {
-// byte[] tmpBuffer = cipher.update(buf, 0, read);
-// resultBaos.write(tmpBuffer);
-// }
+	private enum ResultType {
+		BINARY, STRING, BASE64
+	}
+
+	/**
+	 * Encrypts or decrypts the input stream into the output stream.
+	 */
+	@FunctionalInterface
+	private interface CryptOperation {
+		void apply(InputStream is, OutputStream os) throws GeneralSecurityException, IOException;
+	}
+}
@@ -0,0 +1,248 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.encrypt;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+
+import javax.annotation.Nullable;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Asymmetric encryption as a hybrid envelope: the payload is encrypted with a
+ * random, per-message AES-256 key, and only this key is encrypted with the
+ * public key of the recipient, so that the size of the payload is not limited
+ * by the asymmetric key.
+ *
+ * <p>
+ * The envelope consists of the magic bytes "XCE", the version (1), the key
+ * transport (1 for RSA-OAEP with SHA-256, 2 for ECDH with an ephemeral key and
+ * AES key wrap), the ephemeral public key (for ECDH), and the wrapped content
+ * key, each preceded by its length as unsigned short, then the payload,
+ * encrypted with the content key as {@link SegmentedEncryption} does, so that
+ * it is streamed by authenticated segments, and never held in memory as a
+ * whole, neither when encrypting nor when decrypting. The header is
+ * authenticated as additional data of every segment, so that an envelope whose
+ * header is modified, even in a field which the key transport does not use,
+ * is rejected.
+ * </p>
+ *
+ * <p>
+ * Public keys are given as Base64 (or PEM) encoded X.509 SubjectPublicKeyInfo,
+ * and private keys as Base64 (or PEM) encoded PKCS#8.
+ * </p>
+ */
+public final class HybridEncryption {
+
+	private static final byte[] MAGIC = "XCE".getBytes(US_ASCII);
+	private static final int VERSION = 1;
+	private static final int RSA_OAEP_SHA256 = 1;
+	private static final int ECDH_AES_KEY_WRAP = 2;
+
+	private static final int CONTENT_KEY_SIZE = 256;
+	private static final int MAX_FIELD_LENGTH = 8192;
+
+	private static final String RSA_TRANSFORMATION = "RSA/ECB/OAEPPadding";
+	private static final OAEPParameterSpec OAEP_SHA256 = new OAEPParameterSpec("SHA-256", "MGF1",
+			MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT);
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private HybridEncryption() {
+	}
+
+	/**
+	 * Encrypts the data into a new envelope.
+	 *
+	 * @param is        the data
+	 * @param os        the stream the envelope is written to
+	 * @param publicKey the public key of the recipient
+	 * @param algorithm the key algorithm, "RSA" or "EC"
+	 * @param provider  the cryptographic provider, or null for the default one
+	 */
+	public static void seal(final InputStream is, final OutputStream os, final String publicKey, final String algorithm,
+			@Nullable final String provider) throws GeneralSecurityException, IOException {
+		final String keyAlgorithm = Ciphers.keyAlgorithm(algorithm).toUpperCase(Locale.ROOT);
+		final PublicKey recipientKey = KeyFactory.getInstance(keyAlgorithm)
+				.generatePublic(new X509EncodedKeySpec(decodeKey(publicKey)));
+
+		final KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+		keyGenerator.init(CONTENT_KEY_SIZE, RANDOM);
+		final SecretKey contentKey = keyGenerator.generateKey();
+
+		final int keyTransport;
+		final byte[] ephemeralKey;
+		final byte[] wrappedKey;
+		switch (keyAlgorithm) {
+		case "RSA":
+			keyTransport = RSA_OAEP_SHA256;
+			ephemeralKey = new byte[0];
+			final Cipher rsa = Ciphers.cached(RSA_TRANSFORMATION, provider);
+			rsa.init(Cipher.WRAP_MODE, recipientKey, OAEP_SHA256, RANDOM);
+			wrappedKey = rsa.wrap(contentKey);
+			break;
+
+		case "EC":
+			keyTransport = ECDH_AES_KEY_WRAP;
+			final KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+			keyPairGenerator.initialize(((ECPublicKey) recipientKey).getParams(), RANDOM);
+			final KeyPair ephemeralKeyPair = keyPairGenerator.generateKeyPair();
+			ephemeralKey = ephemeralKeyPair.getPublic().getEncoded();
+			final Cipher aesWrap = Ciphers.cached("AESWrap", provider);
+			aesWrap.init(Cipher.WRAP_MODE, keyEncryptionKey(ephemeralKeyPair.getPrivate(), recipientKey, ephemeralKey));
+			wrappedKey = aesWrap.wrap(contentKey);
+			break;
+
+		default:
+			throw new NoSuchAlgorithmException("Unsupported asymmetric algorithm: " + algorithm);
+		}
+
+		final byte[] header = header(keyTransport, ephemeralKey, wrappedKey);
+		os.write(header);
+
+		SegmentedEncryption.encrypt(is, os, contentKey.getEncoded(), header, provider);
+	}
+
+	/**
+	 * Decrypts, and authenticates, the payload of an envelope.
+	 *
+	 * @param is         the stream the envelope is read from
+	 * @param os         the stream the data is written to
+	 * @param privateKey the private key of the recipient
+	 * @param algorithm  the key algorithm, "RSA" or "EC"
+	 * @param provider   the cryptographic provider, or null for the default one
+	 */
+	public static void open(final InputStream is, final OutputStream os, final String privateKey, final String algorithm,
+			@Nullable final String provider) throws GeneralSecurityException, IOException {
+		final String keyAlgorithm = Ciphers.keyAlgorithm(algorithm).toUpperCase(Locale.ROOT);
+		final PrivateKey recipientKey = KeyFactory.getInstance(keyAlgorithm)
+				.generatePrivate(new PKCS8EncodedKeySpec(decodeKey(privateKey)));
+
+		final DataInputStream dis = new DataInputStream(is);
+		final byte[] magic = new byte[MAGIC.length];
+		dis.readFully(magic);
+		final int version = dis.readUnsignedByte();
+		if (!Arrays.equals(magic, MAGIC) || version != VERSION) {
+			throw new GeneralSecurityException("The data is not an asymmetric encryption envelope.");
+		}
+		final int keyTransport = dis.readUnsignedByte();
+		final byte[] ephemeralKey = readField(dis);
+		final byte[] wrappedKey = readField(dis);
+
+		final Key contentKey;
+		if (keyTransport == RSA_OAEP_SHA256 && keyAlgorithm.equals("RSA")) {
+			final Cipher rsa = Ciphers.cached(RSA_TRANSFORMATION, provider);
+			rsa.init(Cipher.UNWRAP_MODE, recipientKey, OAEP_SHA256);
+			contentKey = rsa.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+		} else if (keyTransport == ECDH_AES_KEY_WRAP && keyAlgorithm.equals("EC")) {
+			final PublicKey ephemeralPublicKey = KeyFactory.getInstance("EC")
+					.generatePublic(new X509EncodedKeySpec(ephemeralKey));
+			final Cipher aesWrap = Ciphers.cached("AESWrap", provider);
+			aesWrap.init(Cipher.UNWRAP_MODE, keyEncryptionKey(recipientKey, ephemeralPublicKey, ephemeralKey));
+			contentKey = aesWrap.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+		} else {
+			throw new GeneralSecurityException(
+					"The key transport of the envelope does not match the algorithm " + algorithm + ".");
+		}
+
+		SegmentedEncryption.decrypt(dis, os, contentKey.getEncoded(), header(keyTransport, ephemeralKey, wrappedKey),
+				provider);
+	}
+
+	private static byte[] header(final int keyTransport, final byte[] ephemeralKey, final byte[] wrappedKey)
+			throws IOException {
+		final ByteArrayOutputStream header = new ByteArrayOutputStream();
+		try (final DataOutputStream dos = new DataOutputStream(header)) {
+			dos.write(MAGIC);
+			dos.writeByte(VERSION);
+			dos.writeByte(keyTransport);
+			dos.writeShort(ephemeralKey.length);
+			dos.write(ephemeralKey);
+			dos.writeShort(wrappedKey.length);
+			dos.write(wrappedKey);
+		}
+
+		return header.toByteArray();
+	}
+
+	/**
+	 * Derives the key encryption key from the ECDH shared secret and the ephemeral
+	 * public key, as SHA-256(shared secret || ephemeral public key).
+	 */
+	private static SecretKey keyEncryptionKey(final PrivateKey privateKey, final PublicKey publicKey,
+			final byte[] ephemeralKey) throws GeneralSecurityException {
+		final KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+		keyAgreement.init(privateKey);
+		keyAgreement.doPhase(publicKey, true);
+
+		final MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+		sha256.update(keyAgreement.generateSecret());
+		sha256.update(ephemeralKey);
+
+		return new SecretKeySpec(sha256.digest(), "AES");
+	}
+
+	private static byte[] readField(final DataInputStream dis) throws IOException, GeneralSecurityException {
+		final int length = dis.readUnsignedShort();
+		if (length > MAX_FIELD_LENGTH) {
+			throw new GeneralSecurityException("The data is not an asymmetric encryption envelope.");
+		}
+		final byte[] field = new byte[length];
+		dis.readFully(field);
+
+		return field;
+	}
+
+	/**
+	 * Decodes a Base64 encoded key, with or without the PEM armour.
+	 */
+	static byte[] decodeKey(final String key) {
+		return Base64.getMimeDecoder().decode(key.replaceAll("-----[A-Z ]+-----", ""));
+	}
+}
@@ -0,0 +1,407 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.encrypt;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.expath.exist.crypto.utils.WorkerPool;
+
+/**
+ * Segmented authenticated encryption, for payloads of any size: the data is
+ * split into segments of fixed size, each of them encrypted with AES-GCM, so
+ * that the segments can be encrypted and decrypted in parallel, on a ForkJoin
+ * pool, and written in order.
+ *
+ * <p>
+ * The result consists of the magic bytes "XCS", the version (1), the segment
+ * size, as int, a 16 bytes random salt, a 7 bytes random nonce prefix, then the
+ * encrypted segments, each followed by its 16 bytes tag. The key of each
+ * message is derived from the secret key and the salt with HKDF-SHA256. The
+ * nonce of a segment is the nonce prefix, followed by the index of the segment,
+ * as int, and by 1 for the last segment, 0 otherwise, so that the segments
+ * cannot be reordered, and the data cannot be truncated. The header is
+ * authenticated as additional data of every segment, after the additional data
+ * given by the caller, if any, e.g. the header of a {@link HybridEncryption}
+ * envelope.
+ * </p>
+ */
+public final class SegmentedEncryption {
+
+	public static final String ALGORITHM = "AES-GCM-SEGMENTED";
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+	public static final int DEFAULT_PARALLELISM = WorkerPool.DEFAULT_PARALLELISM;
+
+	private static final byte[] MAGIC = "XCS".getBytes(US_ASCII);
+	private static final int VERSION = 1;
+	private static final int SALT_LENGTH = 16;
+	private static final int NONCE_PREFIX_LENGTH = 7;
+	private static final int TAG_LENGTH = 16;
+	private static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + SALT_LENGTH + NONCE_PREFIX_LENGTH;
+	private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final byte[] KEY_INFO = "XCS segment key".getBytes(US_ASCII);
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private static volatile int segmentSize = DEFAULT_SEGMENT_SIZE;
+	private static final WorkerPool POOL = new WorkerPool();
+
+	private SegmentedEncryption() {
+	}
+
+	/**
+	 * Sets the number of segments processed concurrently, across all queries, and
+	 * the size of the segments of the data encrypted from now on. The data is
+	 * always decrypted with the segment size it was encrypted with.
+	 */
+	public static void configure(final int parallelism, final int segmentSize) {
+		POOL.configure(parallelism);
+		SegmentedEncryption.segmentSize = Math.min(MAX_SEGMENT_SIZE, Math.max(1, segmentSize));
+	}
+
+	public static boolean supports(final String algorithm) {
+		return ALGORITHM.equalsIgnoreCase(algorithm);
+	}
+
+	/**
+	 * Encrypts the data.
+	 *
+	 * @param secretKey the secret key, as string, of 16, 24 or 32 bytes in UTF-8
+	 * @param provider  the cryptographic provider, or null for the default one
+	 */
+	public static void encrypt(final InputStream is, final OutputStream os, final String secretKey,
+			@Nullable final String provider) throws GeneralSecurityException, IOException {
+		encrypt(is, os, secretKey.getBytes(UTF_8), new byte[0], provider);
+	}
+
+	/**
+	 * Encrypts the data with a secret key of 16, 24 or 32 bytes.
+	 *
+	 * @param associatedData the data authenticated with every segment, which is
+	 *                       not written
+	 */
+	static void encrypt(final InputStream is, final OutputStream os, final byte[] secretKey,
+			final byte[] associatedData, @Nullable final String provider)
+			throws GeneralSecurityException, IOException {
+		final byte[] salt = new byte[SALT_LENGTH];
+		RANDOM.nextBytes(salt);
+		final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+		RANDOM.nextBytes(noncePrefix);
+
+		final Header header = new Header(secretKey, segmentSize, salt, noncePrefix, associatedData);
+		os.write(header.bytes);
+
+		process(Cipher.ENCRYPT_MODE, is, os, header, 0, Long.MAX_VALUE, provider);
+	}
+
+	/**
+	 * Decrypts, and authenticates, the data.
+	 *
+	 * @param secretKey the secret key, as string, of 16, 24 or 32 bytes in UTF-8
+	 * @param provider  the cryptographic provider, or null for the default one
+	 */
+	public static void decrypt(final InputStream is, final OutputStream os, final String secretKey,
+			@Nullable final String provider) throws GeneralSecurityException, IOException {
+		decrypt(is, os, secretKey.getBytes(UTF_8), new byte[0], provider);
+	}
+
+	/**
+	 * Decrypts, and authenticates, the data with a secret key of 16, 24 or 32
+	 * bytes.
+	 *
+	 * @param associatedData the data authenticated with every segment, as it was
+	 *                       given when encrypting
+	 */
+	static void decrypt(final InputStream is, final OutputStream os, final byte[] secretKey,
+			final byte[] associatedData, @Nullable final String provider)
+			throws GeneralSecurityException, IOException {
+		final Header header = Header.read(is, secretKey, associatedData);
+
+		process(Cipher.DECRYPT_MODE, is, os, header, 0, Long.MAX_VALUE, provider);
+	}
+
+	/**
+	 * Decrypts, and authenticates, only the segments covering a range of the
+	 * decrypted data. The segments before the range are skipped, without being
+	 * decrypted, and, if the size of the data is known, without being read. A
+	 * range extending beyond the end of the data is truncated, and a range
+	 * starting beyond it is empty, once the last segment is authenticated, so
+	 * that truncated data is detected for any range.
+	 *
+	 * @param size      the size of the encrypted data, including its header, or -1
+	 *                  if it is not known
+	 * @param offset    the offset of the range in the decrypted data, starting from
+	 *                  0
+	 * @param length    the length of the range
+	 * @param secretKey the secret key, as string, of 16, 24 or 32 bytes in UTF-8
+	 * @param provider  the cryptographic provider, or null for the default one
+	 */
+	public static void decryptRange(final InputStream is, final long size, final OutputStream os, final long offset,
+			final long length, final String secretKey, @Nullable final String provider)
+			throws GeneralSecurityException, IOException {
+		final Header header = Header.read(is, secretKey.getBytes(UTF_8), new byte[0]);
+		if (length == 0) {
+			return;
+		}
+
+		final int inputLength = header.segmentSize + TAG_LENGTH;
+		// the end of a range reaching beyond Long.MAX_VALUE is the end of the data
+		final long lastIndex = (length > Long.MAX_VALUE - offset ? Long.MAX_VALUE : offset + length - 1)
+				/ header.segmentSize;
+		long firstIndex = offset / header.segmentSize;
+
+		final InputStream segments;
+		if (size >= 0) {
+			// there is always one segment, even for empty data
+			final long segmentCount = Math.max(1, (size - HEADER_LENGTH + inputLength - 1) / inputLength);
+			firstIndex = Math.min(firstIndex, segmentCount - 1);
+			skipFully(is, firstIndex * inputLength);
+			segments = is;
+		} else {
+			final PushbackInputStream input = new PushbackInputStream(is, 1);
+			InputStream remaining = input;
+			for (long index = 0; index < firstIndex; index++) {
+				final byte[] segment = readSegment(input, inputLength);
+				if (segment.length < inputLength || isEndOfStream(input)) {
+					firstIndex = index;
+					remaining = new SequenceInputStream(new ByteArrayInputStream(segment), input);
+					break;
+				}
+			}
+			segments = remaining;
+		}
+
+		process(Cipher.DECRYPT_MODE, segments,
+				new RangeOutputStream(os, offset - firstIndex * header.segmentSize, length), header, firstIndex,
+				lastIndex, provider);
+	}
+
+	/**
+	 * Encrypts or decrypts the segments, starting from the current position of the
+	 * input, which is the segment with the first index, up to the last segment, or
+	 * to the segment with the last index. At most twice as many segments as the
+	 * parallelism level are held in memory.
+	 */
+	private static void process(final int mode, final InputStream is, final OutputStream os, final Header header,
+			final long firstIndex, final long lastIndex, @Nullable final String provider)
+			throws GeneralSecurityException, IOException {
+		final int inputLength = mode == Cipher.ENCRYPT_MODE ? header.segmentSize : header.segmentSize + TAG_LENGTH;
+		final PushbackInputStream input = new PushbackInputStream(is, 1);
+		final ForkJoinPool pool = POOL.pool();
+		final int maxInFlight = WorkerPool.maxInFlight(pool);
+		final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+
+		try {
+			for (long index = firstIndex;; index++) {
+				final byte[] segment = readSegment(input, inputLength);
+				final boolean last = segment.length < inputLength || isEndOfStream(input);
+
+				final long segmentIndex = index;
+				inFlight.add(pool.submit(() -> crypt(mode, header, segment, segmentIndex, last, provider)));
+				if (inFlight.size() >= maxInFlight) {
+					os.write(WorkerPool.await(inFlight.poll()));
+				}
+
+				if (last || index == lastIndex) {
+					break;
+				}
+			}
+
+			while (!inFlight.isEmpty()) {
+				os.write(WorkerPool.await(inFlight.poll()));
+			}
+		} finally {
+			for (final Future<byte[]> segment : inFlight) {
+				segment.cancel(true);
+			}
+		}
+	}
+
+	private static byte[] crypt(final int mode, final Header header, final byte[] segment, final long index,
+			final boolean last, @Nullable final String provider) throws GeneralSecurityException {
+		if (index > 0xFFFFFFFFL) {
+			throw new GeneralSecurityException("The data has too many segments.");
+		}
+
+		final byte[] nonce = ByteBuffer.allocate(NONCE_PREFIX_LENGTH + 5).put(header.noncePrefix)
+				.putInt((int) index).put((byte) (last ? 1 : 0)).array();
+
+		final Cipher cipher = Ciphers.cached("AES/GCM/NoPadding", provider);
+		cipher.init(mode, header.key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+		cipher.updateAAD(header.associatedData);
+
+		return cipher.doFinal(segment);
+	}
+
+	private static byte[] readSegment(final InputStream is, final int length) throws IOException {
+		final byte[] segment = new byte[length];
+		int total = 0;
+		int read;
+		while (total < length && (read = is.read(segment, total, length - total)) > -1) {
+			total += read;
+		}
+
+		return total == length ? segment : Arrays.copyOf(segment, total);
+	}
+
+	private static void skipFully(final InputStream is, final long n) throws IOException {
+		long remaining = n;
+		while (remaining > 0) {
+			final long skipped = is.skip(remaining);
+			if (skipped > 0) {
+				remaining -= skipped;
+			} else if (is.read() == -1) {
+				return;
+			} else {
+				remaining--;
+			}
+		}
+	}
+
+	private static boolean isEndOfStream(final PushbackInputStream is) throws IOException {
+		final int b = is.read();
+		if (b == -1) {
+			return true;
+		}
+		is.unread(b);
+
+		return false;
+	}
+
+	/**
+	 * Writes only a window of the bytes written to it.
+	 */
+	private static final class RangeOutputStream extends FilterOutputStream {
+		private long skip;
+		private long remaining;
+
+		private RangeOutputStream(final OutputStream os, final long skip, final long length) {
+			super(os);
+			this.skip = skip;
+			this.remaining = length;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			final int skipped = (int) Math.min(skip, len);
+			skip -= skipped;
+			final int written = (int) Math.min(remaining, len - skipped);
+			if (written > 0) {
+				out.write(b, off + skipped, written);
+				remaining -= written;
+			}
+		}
+	}
+
+	/**
+	 * The header of the encrypted data, with the key derived for it, and the
+	 * additional data authenticated with every segment.
+	 */
+	private static final class Header {
+		private final byte[] bytes;
+		private final byte[] associatedData;
+		private final int segmentSize;
+		private final byte[] noncePrefix;
+		private final SecretKey key;
+
+		private Header(final byte[] secretKey, final int segmentSize, final byte[] salt, final byte[] noncePrefix,
+				final byte[] associatedData) throws GeneralSecurityException {
+			this.bytes = ByteBuffer.allocate(HEADER_LENGTH).put(MAGIC).put((byte) VERSION).putInt(segmentSize)
+					.put(salt).put(noncePrefix).array();
+			this.associatedData = ByteBuffer.allocate(associatedData.length + HEADER_LENGTH).put(associatedData)
+					.put(bytes).array();
+			this.segmentSize = segmentSize;
+			this.noncePrefix = noncePrefix;
+			this.key = deriveKey(secretKey, salt);
+		}
+
+		private static Header read(final InputStream is, final byte[] secretKey, final byte[] associatedData)
+				throws GeneralSecurityException, IOException {
+			final DataInputStream dis = new DataInputStream(is);
+
+			final byte[] magic = new byte[MAGIC.length];
+			dis.readFully(magic);
+			final int version = dis.readUnsignedByte();
+			final int segmentSize = dis.readInt();
+			if (!Arrays.equals(magic, MAGIC) || version != VERSION || segmentSize < 1
+					|| segmentSize > MAX_SEGMENT_SIZE) {
+				throw new GeneralSecurityException("The data is not encrypted with " + ALGORITHM + ".");
+			}
+			final byte[] salt = new byte[SALT_LENGTH];
+			dis.readFully(salt);
+			final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+			dis.readFully(noncePrefix);
+
+			return new Header(secretKey, segmentSize, salt, noncePrefix, associatedData);
+		}
+
+		/**
+		 * Derives the key of a message with HKDF-SHA256, whose output has the length
+		 * of the secret key.
+		 */
+		private static SecretKey deriveKey(final byte[] secretKey, final byte[] salt)
+				throws GeneralSecurityException {
+			if (secretKey.length != 16 && secretKey.length != 24 && secretKey.length != 32) {
+				throw new InvalidKeyException("The secret key must have 16, 24 or 32 bytes.");
+			}
+
+			final Mac hmac = Mac.getInstance("HmacSHA256");
+			hmac.init(new SecretKeySpec(salt, "HmacSHA256"));
+			final byte[] pseudoRandomKey = hmac.doFinal(secretKey);
+
+			hmac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+			hmac.update(KEY_INFO);
+			hmac.update((byte) 1);
+
+			return new SecretKeySpec(Arrays.copyOf(hmac.doFinal(), secretKey.length), "AES");
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.expath.exist.crypto.digest.HmacKeyCache;
+import org.expath.exist.crypto.digest.SigningKeyCache;
+import org.expath.exist.crypto.digitalSignature.KeyPairPool;
+import org.expath.exist.crypto.digitalSignature.KeyStoreCache;
+import org.expath.exist.crypto.digitalSignature.ValidationCache;
+
+/**
+ * Registry of the {@link FunctionMetrics} of the module, per function and per
+ * algorithm, published over JMX as
+ * <code>org.expath.exist.crypto:type=FunctionMetrics,function=...,algorithm=...</code>,
+ * next to the module MBean <code>org.expath.exist.crypto:type=Metrics</code>.
+ *
+ * The metrics of a known (function, algorithm) pair are looked up without
+ * locking or allocating. The number of algorithms per function is bounded, as
+ * the algorithm names come from the queries; the calls with further algorithms
+ * are counted under {@value #OTHER_ALGORITHM}.
+ */
+public final class CryptoMetrics implements CryptoMetricsMXBean {
+
+	private static final Logger LOG = LogManager.getLogger(CryptoMetrics.class);
+
+	public static final String DOMAIN = "org.expath.exist.crypto";
+	public static final String OTHER_ALGORITHM = "other";
+
+	static final int MAX_ALGORITHMS = 32;
+
+	private static final ConcurrentMap<String, ConcurrentMap<String, FunctionMetrics>> FUNCTIONS = new ConcurrentHashMap<>();
+
+	private static volatile boolean registered = false;
+
+	private CryptoMetrics() {
+	}
+
+	/**
+	 * Returns the metrics of the function for the algorithm, creating them on
+	 * first use.
+	 */
+	public static FunctionMetrics metrics(final String function, @Nullable final String algorithm) {
+		ConcurrentMap<String, FunctionMetrics> algorithms = FUNCTIONS.get(function);
+		if (algorithms == null) {
+			algorithms = FUNCTIONS.computeIfAbsent(function, name -> new ConcurrentHashMap<>());
+		}
+
+		final String name = algorithm == null ? "" : algorithm;
+		final FunctionMetrics metrics = algorithms.get(name);
+		if (metrics != null) {
+			return metrics;
+		}
+
+		if (algorithms.size() < MAX_ALGORITHMS) {
+			return create(function, algorithms, name);
+		}
+
+		final FunctionMetrics other = algorithms.get(OTHER_ALGORITHM);
+
+		return other != null ? other : create(function, algorithms, OTHER_ALGORITHM);
+	}
+
+	private static FunctionMetrics create(final String function,
+			final ConcurrentMap<String, FunctionMetrics> algorithms, final String algorithm) {
+		final FunctionMetrics created = new FunctionMetrics(function, algorithm);
+		final FunctionMetrics existing = algorithms.putIfAbsent(algorithm, created);
+		if (existing != null) {
+			return existing;
+		}
+
+		if (registered) {
+			register(created);
+		}
+
+		return created;
+	}
+
+	/**
+	 * Registers the module MBean, and the metrics recorded so far, with the
+	 * platform MBean server. Registering more than once has no effect, as the
+	 * module is instantiated for each query context.
+	 */
+	public static synchronized void register() {
+		if (registered) {
+			return;
+		}
+
+		try {
+			register(new CryptoMetrics(), new ObjectName(DOMAIN + ":type=Metrics"));
+		} catch (final JMException e) {
+			LOG.warn("Unable to register the metrics MBean: {}", e.getMessage());
+			return;
+		}
+
+		registered = true;
+		FUNCTIONS.values().forEach(algorithms -> algorithms.values().forEach(CryptoMetrics::register));
+	}
+
+	private static void register(final FunctionMetrics metrics) {
+		try {
+			register(metrics, new ObjectName(DOMAIN + ":type=FunctionMetrics,function=" + metrics.getFunction()
+					+ ",algorithm=" + ObjectName.quote(metrics.getAlgorithm())));
+		} catch (final JMException e) {
+			LOG.warn("Unable to register the metrics MBean of {}: {}", metrics.getFunction(), e.getMessage());
+		}
+	}
+
+	private static void register(final Object mbean, final ObjectName name) throws JMException {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(name)) {
+			return;
+		}
+
+		try {
+			server.registerMBean(mbean, name);
+		} catch (final InstanceAlreadyExistsException e) {
+			// registered concurrently
+		}
+	}
+
+	@Override
+	public long getHmacKeyCacheHits() {
+		return HmacKeyCache.getHits();
+	}
+
+	@Override
+	public long getHmacKeyCacheMisses() {
+		return HmacKeyCache.getMisses();
+	}
+
+	@Override
+	public int getHmacKeyCacheSize() {
+		return HmacKeyCache.size();
+	}
+
+	@Override
+	public long getSigningKeyCacheHits() {
+		return SigningKeyCache.getHits();
+	}
+
+	@Override
+	public long getSigningKeyCacheMisses() {
+		return SigningKeyCache.getMisses();
+	}
+
+	@Override
+	public int getSigningKeyCacheSize() {
+		return SigningKeyCache.size();
+	}
+
+	@Override
+	public long getKeyStoreCacheHits() {
+		return KeyStoreCache.getHits();
+	}
+
+	@Override
+	public long getKeyStoreCacheMisses() {
+		return KeyStoreCache.getMisses();
+	}
+
+	@Override
+	public int getKeyStoreCacheSize() {
+		return KeyStoreCache.size();
+	}
+
+	@Override
+	public long getKeyPairPoolHits() {
+		return KeyPairPool.getHits();
+	}
+
+	@Override
+	public long getKeyPairPoolMisses() {
+		return KeyPairPool.getMisses();
+	}
+
+	@Override
+	public int getKeyPairPoolSize() {
+		return KeyPairPool.size();
+	}
+
+	@Override
+	public long getValidationCacheHits() {
+		return ValidationCache.getHits();
+	}
+
+	@Override
+	public long getValidationCacheMisses() {
+		return ValidationCache.getMisses();
+	}
+
+	@Override
+	public int getValidationCacheSize() {
+		return ValidationCache.size();
+	}
+
+	@Override
+	public void reset() {
+		FUNCTIONS.values().forEach(algorithms -> algorithms.values().forEach(FunctionMetrics::reset));
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call, error, and byte counts, and latencies, of a function for one
+ * algorithm. The counters are striped, so that concurrent calls do not contend,
+ * and recording does not allocate.
+ */
+public final class FunctionMetrics implements FunctionMetricsMXBean {
+
+	private final String function;
+	private final String algorithm;
+
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LatencyHistogram latencies = new LatencyHistogram();
+
+	FunctionMetrics(final String function, final String algorithm) {
+		this.function = function;
+		this.algorithm = algorithm;
+	}
+
+	/**
+	 * Adds to the number of bytes processed by the current call.
+	 */
+	public void addBytes(final long count) {
+		bytes.add(count);
+	}
+
+	/**
+	 * Records a call, which started at the given {@link System#nanoTime()}.
+	 */
+	public void record(final long startTime, final boolean failed) {
+		calls.increment();
+		if (failed) {
+			errors.increment();
+		}
+		latencies.record(System.nanoTime() - startTime);
+	}
+
+	@Override
+	public String getFunction() {
+		return function;
+	}
+
+	@Override
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	@Override
+	public long getCalls() {
+		return calls.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	@Override
+	public long getLatencyP50() {
+		return TimeUnit.NANOSECONDS.toMicros(latencies.quantile(0.5));
+	}
+
+	@Override
+	public long getLatencyP99() {
+		return TimeUnit.NANOSECONDS.toMicros(latencies.quantile(0.99));
+	}
+
+	@Override
+	public long getLatencyMax() {
+		return TimeUnit.NANOSECONDS.toMicros(latencies.getMax());
+	}
+
+	@Override
+	public void reset() {
+		calls.reset();
+		errors.reset();
+		bytes.reset();
+		latencies.reset();
+	}
+}
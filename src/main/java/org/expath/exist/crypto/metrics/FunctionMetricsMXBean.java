@@ -0,0 +1,45 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.metrics;
+
+/**
+ * Management interface of the metrics of a function, for one algorithm.
+ * Latencies are in microseconds.
+ */
+public interface FunctionMetricsMXBean {
+
+	String getFunction();
+
+	String getAlgorithm();
+
+	long getCalls();
+
+	long getErrors();
+
+	long getBytes();
+
+	long getLatencyP50();
+
+	long getLatencyP99();
+
+	long getLatencyMax();
+
+	void reset();
+}
@@ -0,0 +1,173 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+/**
+ * Bounded LRU cache with expiry, shared by the caches and registries of the
+ * module. An entry expires after the time to live, counted from its creation,
+ * or from its last use if the cache expires the idle entries, or at the time
+ * given when it was put. The least recently used entry is discarded when the
+ * cache is full.
+ */
+public final class BoundedCache<V> {
+
+	private final boolean expireIdle;
+
+	private volatile int maxSize;
+	private volatile long ttl;
+
+	private final Map<String, Entry<V>> entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Entry<V>> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param maxSize    the maximum number of entries (0 disables the cache)
+	 * @param ttl        the time to live of an entry, in milliseconds (0 means
+	 *                   no expiry)
+	 * @param expireIdle if the time to live is counted from the last use of an
+	 *                   entry, instead of from its creation
+	 */
+	public BoundedCache(final int maxSize, final long ttl, final boolean expireIdle) {
+		this.maxSize = Math.max(0, maxSize);
+		this.ttl = Math.max(0, ttl);
+		this.expireIdle = expireIdle;
+	}
+
+	/**
+	 * Sets the maximum number of entries (0 disables the cache), and the time to
+	 * live of the entries put from now on, in milliseconds (0 means no expiry).
+	 * The least recently used entries beyond the new maximum are discarded.
+	 */
+	public void configure(final int maxSize, final long ttl) {
+		synchronized (entries) {
+			this.maxSize = Math.max(0, maxSize);
+			this.ttl = Math.max(0, ttl);
+
+			final Iterator<Entry<V>> eldest = entries.values().iterator();
+			while (entries.size() > this.maxSize) {
+				eldest.next();
+				eldest.remove();
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Gets an entry, which is then the most recently used one.
+	 *
+	 * @return the value, or null if it is not cached, or it has expired.
+	 */
+	@Nullable
+	public V get(final String key) {
+		if (maxSize > 0) {
+			final long now = System.currentTimeMillis();
+			synchronized (entries) {
+				final Entry<V> entry = entries.get(key);
+				if (entry != null) {
+					if (now < entry.expires) {
+						if (expireIdle && ttl > 0) {
+							entry.expires = now + ttl;
+						}
+						hits.increment();
+						return entry.value;
+					}
+					entries.remove(key);
+				}
+			}
+		}
+		misses.increment();
+
+		return null;
+	}
+
+	/**
+	 * Puts an entry, which expires after the time to live.
+	 */
+	public void put(final String key, final V value) {
+		final long ttl = this.ttl;
+		put(key, value, ttl == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + ttl);
+	}
+
+	/**
+	 * Puts an entry, which expires at the given time, in milliseconds since the
+	 * epoch.
+	 */
+	public void put(final String key, final V value, final long expires) {
+		if (maxSize > 0) {
+			synchronized (entries) {
+				entries.put(key, new Entry<>(value, expires));
+			}
+		}
+	}
+
+	public void remove(final String key) {
+		synchronized (entries) {
+			entries.remove(key);
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	private static final class Entry<V> {
+		private final V value;
+		private long expires;
+
+		private Entry(final V value, final long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
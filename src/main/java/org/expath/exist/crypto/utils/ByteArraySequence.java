@@ -0,0 +1,137 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.utils;
+
+import org.exist.dom.persistent.NodeSet;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.AbstractSequence;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.MemoryNodeSet;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
+
+/**
+ * An immutable sequence of integers, one for each byte, backed by a single byte
+ * array. The items are only created when they are accessed, and
+ * {@link Conversion#sequence2javaTypes(org.exist.xquery.value.Sequence)} reads
+ * the bytes back without iterating the sequence.
+ */
+public class ByteArraySequence extends AbstractSequence {
+
+	private final byte[] bytes;
+
+	public ByteArraySequence(final byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Gets the backing array, which must not be modified.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public int getItemType() {
+		return Type.INTEGER;
+	}
+
+	@Override
+	public int getItemCount() {
+		return bytes.length;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return bytes.length == 0;
+	}
+
+	@Override
+	public boolean hasOne() {
+		return bytes.length == 1;
+	}
+
+	@Override
+	public Item itemAt(final int pos) {
+		if (pos < 0 || pos >= bytes.length) {
+			return null;
+		}
+
+		return new IntegerValue(bytes[pos]);
+	}
+
+	@Override
+	public SequenceIterator iterate() {
+		return new ByteArraySequenceIterator();
+	}
+
+	@Override
+	public SequenceIterator unorderedIterator() {
+		return new ByteArraySequenceIterator();
+	}
+
+	@Override
+	public void add(final Item item) throws XPathException {
+		throw new XPathException("Cannot add an item to an immutable sequence of bytes.");
+	}
+
+	@Override
+	public NodeSet toNodeSet() throws XPathException {
+		throw new XPathException("Type error: the sequence cannot be converted into a node set. Item type is "
+				+ Type.getTypeName(getItemType()));
+	}
+
+	@Override
+	public MemoryNodeSet toMemNodeSet() throws XPathException {
+		throw new XPathException("Type error: the sequence cannot be converted into a node set. Item type is "
+				+ Type.getTypeName(getItemType()));
+	}
+
+	@Override
+	public void removeDuplicates() {
+		// a sequence of atomic values keeps its duplicates
+	}
+
+	@Override
+	public boolean isCached() {
+		return false;
+	}
+
+	@Override
+	public void setIsCached(final boolean cached) {
+		// the sequence is immutable, there is nothing to cache
+	}
+
+	private class ByteArraySequenceIterator implements SequenceIterator {
+
+		private int position = 0;
+
+		@Override
+		public boolean hasNext() {
+			return position < bytes.length;
+		}
+
+		@Override
+		public Item nextItem() {
+			return position < bytes.length ? new IntegerValue(bytes[position++]) : null;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a sequence of US-ASCII characters (e.g. Base64 or hex encoded data) as
+ * bytes, without copying it to a byte array first. A character beyond US-ASCII
+ * is not folded onto a byte, but reported as an {@link IOException}, as the
+ * decoders reading the stream report their own illegal characters.
+ */
+public class CharSequenceInputStream extends InputStream {
+
+	private final CharSequence chars;
+	private int position = 0;
+
+	public CharSequenceInputStream(final CharSequence chars) {
+		this.chars = chars;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return position < chars.length() ? toByte(chars.charAt(position++)) : -1;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		final int available = chars.length() - position;
+		if (available <= 0) {
+			return -1;
+		}
+
+		final int count = Math.min(len, available);
+		for (int i = 0; i < count; i++) {
+			b[off + i] = (byte) toByte(chars.charAt(position++));
+		}
+
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return chars.length() - position;
+	}
+
+	private int toByte(final char c) throws IOException {
+		if (c > 0x7F) {
+			throw new IOException("Illegal character " + String.format("U+%04X", (int) c) + " at index "
+					+ (position - 1) + ", which is not US-ASCII.");
+		}
+
+		return c;
+	}
+}
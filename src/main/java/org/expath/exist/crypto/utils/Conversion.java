@@ -11,12 +11,10 @@ import org.apache.logging.log4j.Logger;
 import org.exist.util.io.FastByteArrayOutputStream;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.value.BinaryValue;
-import org.exist.xquery.value.IntegerValue;
 import org.exist.xquery.value.NumericValue;
 import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.SequenceIterator;
 import org.exist.xquery.value.Type;
-import org.exist.xquery.value.ValueSequence;
 
 import com.evolvedbinary.j8fu.Either;
 
@@ -51,6 +49,10 @@ public class Conversion {
 
 	@Nullable
 	public static Either<InputStream, byte[]> sequence2javaTypes(final Sequence sequence) throws XPathException {
+		if (sequence instanceof ByteArraySequence) {
+			return Either.Right(((ByteArraySequence) sequence).getBytes());
+		}
+
 		final int itemCount = sequence.getItemCount();
 		LOG.debug("itemCount = {}", () -> itemCount);
 
@@ -76,8 +78,15 @@ public class Conversion {
 			default:
 				return null;
 			}
+		} else if (Type.subTypeOf(sequence.getItemType(), Type.INTEGER)) {
+			// bulk path for xs:byte*, copied directly into an array of the right size
+			final byte[] bytes = new byte[itemCount];
+			for (int i = 0; i < itemCount; i++) {
+				bytes[i] = (byte) ((NumericValue) sequence.itemAt(i)).getInt();
+			}
+			return Either.Right(bytes);
 		} else {
-			final FastByteArrayOutputStream baos = new FastByteArrayOutputStream();
+			final FastByteArrayOutputStream baos = new FastByteArrayOutputStream(itemCount);
 			for (final SequenceIterator iterator = sequence.iterate(); iterator.hasNext();) {
 				baos.write(((NumericValue) iterator.nextItem()).getInt());
 			}
@@ -86,17 +95,6 @@ public class Conversion {
 	}
 
 	public static Sequence byteArrayToIntegerSequence(byte[] bytes) {
-		Sequence result = new ValueSequence();
-		int bytesLength = bytes.length;
-
-		for (int i = 0, il = bytesLength; i < il; i++) {
-			try {
-				result.add(new IntegerValue(bytes[i]));
-			} catch (XPathException e) {
-				e.printStackTrace();
-			}
-		}
-
-		return result;
+		return new ByteArraySequence(bytes);
 	}
 }
@@ -0,0 +1,139 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+import javax.annotation.Nullable;
+
+import org.exist.util.io.FastByteArrayOutputStream;
+import org.exist.util.io.TemporaryFileManager;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.Base64BinaryValueType;
+import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.BinaryValueFromBinaryString;
+import org.exist.xquery.value.BinaryValueFromFile;
+
+/**
+ * Collects a binary result in memory, up to a threshold, beyond which the data
+ * collected so far, and all the following, is written into a temporary file,
+ * so that small results do not cost a file, and large ones are not held in
+ * memory. The temporary file is returned to the {@link TemporaryFileManager}
+ * when the query context of the result is cleaned up, or when the result is
+ * discarded.
+ */
+public class SpillingOutputStream extends OutputStream {
+
+	private final long threshold;
+
+	@Nullable
+	private FastByteArrayOutputStream memory = new FastByteArrayOutputStream();
+	@Nullable
+	private Path file = null;
+	@Nullable
+	private OutputStream fileStream = null;
+
+	/**
+	 * @param threshold the size, in bytes, up to which the data is kept in memory
+	 */
+	public SpillingOutputStream(final long threshold) {
+		this.threshold = threshold;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		target(1).write(b);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		target(len).write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (fileStream != null) {
+			fileStream.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (fileStream != null) {
+			fileStream.close();
+		}
+	}
+
+	/**
+	 * Returns the collected data as xs:base64Binary, once this stream is closed.
+	 */
+	public BinaryValue toBinaryValue(final XQueryContext context) throws XPathException {
+		if (file != null) {
+			final Path spilled = file;
+			context.registerCleanupTask(
+					(cleanedContext, predicate) -> TemporaryFileManager.getInstance().returnTemporaryFile(spilled));
+
+			return BinaryValueFromFile.getInstance(context, new Base64BinaryValueType(), file);
+		}
+
+		return new BinaryValueFromBinaryString(new Base64BinaryValueType(),
+				Base64.getEncoder().encodeToString(memory.toByteArray()));
+	}
+
+	/**
+	 * Discards the collected data, and returns the temporary file, if any, e.g.
+	 * when the result could not be completed.
+	 */
+	public void discard() {
+		memory = null;
+		if (file != null) {
+			try {
+				close();
+			} catch (final IOException e) {
+				// the file is returned anyway
+			}
+			TemporaryFileManager.getInstance().returnTemporaryFile(file);
+			file = null;
+			fileStream = null;
+		}
+	}
+
+	private OutputStream target(final int length) throws IOException {
+		if (fileStream != null) {
+			return fileStream;
+		}
+
+		if ((long) memory.size() + length <= threshold) {
+			return memory;
+		}
+
+		file = TemporaryFileManager.getInstance().getTemporaryFile();
+		fileStream = Files.newOutputStream(file);
+		memory.writeTo(fileStream);
+		memory = null;
+
+		return fileStream;
+	}
+}
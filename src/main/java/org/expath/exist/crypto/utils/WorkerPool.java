@@ -0,0 +1,99 @@
+/**
+ * eXist-db EXPath Cryptographic library
+ * eXist-db wrapper for EXPath Cryptographic Java library
+ * Copyright (C) 2016 Claudius Teodorescu
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1
+ * of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.expath.exist.crypto.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Holder of a ForkJoin pool in asynchronous mode, shared by all the queries,
+ * whose parallelism is set by the module. The callers keep at most
+ * {@link #maxInFlight(ForkJoinPool)} of their tasks in the pool, so that the
+ * data of the pending tasks is bounded.
+ */
+public final class WorkerPool {
+
+	public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+	private ForkJoinPool pool = newPool(DEFAULT_PARALLELISM);
+
+	/**
+	 * Sets the parallelism level. The pool is replaced only when the level
+	 * changes. The old pool is not shut down, as the operations which got it
+	 * may still submit tasks to it; its workers terminate once they are idle.
+	 */
+	public synchronized void configure(final int parallelism) {
+		final int level = Math.max(1, parallelism);
+		if (level != pool.getParallelism()) {
+			pool = newPool(level);
+		}
+	}
+
+	public synchronized int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Gets the current pool, to which the tasks of one operation are submitted.
+	 */
+	public synchronized ForkJoinPool pool() {
+		return pool;
+	}
+
+	/**
+	 * The number of tasks of one operation that can be pending in the pool.
+	 */
+	public static int maxInFlight(final ForkJoinPool pool) {
+		return pool.getParallelism() * 2;
+	}
+
+	/**
+	 * Waits for the result of a task, rethrowing its exception.
+	 */
+	public static <T> T await(final Future<T> task) throws GeneralSecurityException, IOException {
+		try {
+			return task.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(e.getMessage());
+		} catch (final ExecutionException e) {
+			// ForkJoin tasks wrap the checked exceptions of callables
+			Throwable cause = e.getCause();
+			while (cause instanceof RuntimeException && cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			if (cause instanceof GeneralSecurityException) {
+				throw (GeneralSecurityException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private static ForkJoinPool newPool(final int parallelism) {
+		return new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+	}
+}